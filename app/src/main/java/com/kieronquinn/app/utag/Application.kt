@@ -29,6 +29,7 @@ import com.kieronquinn.app.utag.components.navigation.WidgetContainerNavigation
 import com.kieronquinn.app.utag.components.navigation.WidgetContainerNavigationImpl
 import com.kieronquinn.app.utag.model.database.UTagDatabase
 import com.kieronquinn.app.utag.model.database.cache.CacheDatabase
+import com.kieronquinn.app.utag.networking.interceptors.AuthTokenCache
 import com.kieronquinn.app.utag.repositories.AnalyticsRepository
 import com.kieronquinn.app.utag.repositories.AnalyticsRepositoryImpl
 import com.kieronquinn.app.utag.repositories.ApiRepository
@@ -290,19 +291,22 @@ class Application: Application(), LifecycleEventObserver {
         single<Retrofit> { createRetrofit(get()) }
         single<Markwon> { createMarkwon() }
         single<RoomEncryptionHelper> { RoomEncryptionHelper{ getAll() } }
+        single<AuthTokenCache> { AuthTokenCache(get()) }
     }
 
     private fun repositories() = module {
         single<SmartThingsRepository> { SmartThingsRepositoryImpl(get(), get()) }
-        single<AuthRepository> { AuthRepositoryImpl(get(), get(), get(), get(), get(), get(), get()) }
-        single<ApiRepository> { ApiRepositoryImpl(get(), get(), get(), get(), get(), get()) }
+        single<AuthRepository> { AuthRepositoryImpl(get(), get(), get(), get(), get(), get(), get(), get(), get()) }
+        single<ApiRepository> { ApiRepositoryImpl(get(), get(), get(), get(), get(), get(), get()) }
         single<DeviceRepository> { DeviceRepositoryImpl(get(), get(), get(), get()) }
         single<LocationRepository> { LocationRepositoryImpl(get(), get()) }
         single<GeocoderRepository> {
-            GeocoderRepositoryImpl(get(), get())
+            GeocoderRepositoryImpl(get(), get(), get())
         } bind RoomEncryptionFailedCallback::class
         single<UserRepository> { UserRepositoryImpl(get(), get(), get()) }
-        single<EncryptedSettingsRepository> { EncryptedSettingsRepositoryImpl(get()) }
+        single<EncryptedSettingsRepository> {
+            EncryptedSettingsRepositoryImpl(get())
+        } bind RoomEncryptionFailedCallback::class
         single<SmartTagServiceRepository> { SmartTagServiceRepositoryImpl(get()) }
         single<QcServiceRepository> { QcServiceRepositoryImpl(get()) }
         single<UTagServiceRepository> {
@@ -319,7 +323,9 @@ class Application: Application(), LifecycleEventObserver {
             )
         } bind RoomEncryptionFailedCallback::class
         single<SettingsRepository> { SettingsRepositoryImpl(get()) }
-        single<LocationHistoryRepository> { LocationHistoryRepositoryImpl(get(), get(), get()) }
+        single<LocationHistoryRepository> {
+            LocationHistoryRepositoryImpl(get(), get(), get(), get(), get(), get(), get())
+        } bind RoomEncryptionFailedCallback::class
         single<EncryptionRepository> { EncryptionRepositoryImpl(get(), get()) }
         single<UpdateRepository> { UpdateRepositoryImpl(get(), get()) }
         single<DownloadRepository> { DownloadRepositoryImpl(get()) }
@@ -349,9 +355,13 @@ class Application: Application(), LifecycleEventObserver {
         single<PassiveModeRepository> { PassiveModeRepositoryImpl(get(), get(), get()) }
         single<AnalyticsRepository>(createdAtStart = isMainProcess()) { AnalyticsRepositoryImpl(get(), get()) }
         single<ContentCreatorRepository> { ContentCreatorRepositoryImpl(get(), get(), get()) }
-        single<NonOwnerTagRepository>(createdAtStart = isMainProcess()) { NonOwnerTagRepositoryImpl(get(), get(), get(), get(), get(), get(), get()) }
-        single<ChaserRepository>(createdAtStart = isMainProcess()) { ChaserRepositoryImpl(get(), get(), get(), get(), get()) }
-        single<CacheRepository> { CacheRepositoryImpl(get(), get()) }
+        single<NonOwnerTagRepository>(createdAtStart = isMainProcess()) {
+            NonOwnerTagRepositoryImpl(get(), get(), get(), get(), get(), get(), get(), get())
+        } bind RoomEncryptionFailedCallback::class
+        single<ChaserRepository>(createdAtStart = isMainProcess()) {
+            ChaserRepositoryImpl(get(), get(), get(), get(), get(), get())
+        } bind RoomEncryptionFailedCallback::class
+        single<CacheRepository> { CacheRepositoryImpl(get(), get(), get()) }
     }
 
     private fun viewModels() = module {
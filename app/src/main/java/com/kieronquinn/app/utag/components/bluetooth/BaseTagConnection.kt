@@ -6,9 +6,6 @@ import com.kieronquinn.app.utag.model.D2DStatus
 import com.kieronquinn.app.utag.networking.model.smartthings.SendLocationRequest
 import com.kieronquinn.app.utag.repositories.ApiRepository
 import com.kieronquinn.app.utag.repositories.AuthRepository
-import com.kieronquinn.app.utag.repositories.EncryptedSettingsRepository
-import com.kieronquinn.app.utag.repositories.SmartThingsRepository
-import com.kieronquinn.app.utag.repositories.UserRepository
 import com.kieronquinn.app.utag.utils.extensions.runCatchingOrNull
 import kotlinx.coroutines.CancellationException
 import kotlinx.coroutines.Job
@@ -16,12 +13,12 @@ import kotlinx.coroutines.MainScope
 import kotlinx.coroutines.cancel
 import kotlinx.coroutines.delay
 import kotlinx.coroutines.launch
+import kotlinx.coroutines.suspendCancellableCoroutine
 import kotlinx.coroutines.sync.Mutex
 import kotlinx.coroutines.sync.withLock
 import org.koin.core.component.KoinComponent
 import org.koin.core.component.inject
 import kotlin.coroutines.resume
-import kotlin.coroutines.suspendCoroutine
 
 abstract class BaseTagConnection(
     open val deviceId: String,
@@ -31,9 +28,6 @@ abstract class BaseTagConnection(
 ): KoinComponent {
 
     private val apiRepository by inject<ApiRepository>()
-    private val smartThingsRepository by inject<SmartThingsRepository>()
-    private val userRepository by inject<UserRepository>()
-    private val encryptedSettingsRepository by inject<EncryptedSettingsRepository>()
     private val authRepository by inject<AuthRepository>()
     private val scope = MainScope()
     private var autoRefreshJob: Job? = null
@@ -50,7 +44,7 @@ abstract class BaseTagConnection(
                     syncLock.withLock {
                         isAutoSyncing = true
                         onAutoSyncStarted?.invoke(deviceId)
-                        val result = syncLocation(false)
+                        val result = syncLocation(false, LocationSyncSession())
                         isAutoSyncing = false
                         result
                     }
@@ -69,7 +63,10 @@ abstract class BaseTagConnection(
         }
     }
 
-    private suspend fun syncLocation(onDemand: Boolean): SyncResult = runCatchingOrNull {
+    private suspend fun syncLocation(
+        onDemand: Boolean,
+        session: LocationSyncSession
+    ): SyncResult = runCatchingOrNull {
         //Getting the battery level ensures the device is local
         var batteryLevel = getBatteryLevel()
             ?: return@runCatchingOrNull SyncResult.FAILED_TO_CONNECT
@@ -79,13 +76,10 @@ abstract class BaseTagConnection(
             batteryLevel = getBatteryLevel()
                 ?: return@runCatchingOrNull SyncResult.FAILED_TO_CONNECT
         }
-        val location = smartThingsRepository.getLocation()
+        val location = session.getLocation()
             ?: return@runCatchingOrNull SyncResult.FAILED_TO_GET_LOCATION
-        val userName = userRepository.getUserInfo()?.fullName
+        val user = session.getUser()
             ?: return@runCatchingOrNull SyncResult.FAILED_TO_SEND
-        val userId = encryptedSettingsRepository.userId.getOrNull()?.takeIf {
-            it.isNotEmpty()
-        } ?: return@runCatchingOrNull SyncResult.FAILED_TO_SEND
         val status = if(isConnectedForLocation()) {
             D2DStatus.GATT_CONNECTED
         }else{
@@ -98,8 +92,8 @@ abstract class BaseTagConnection(
                 name = Build.MODEL
             ),
             connectedUser = SendLocationRequest.ConnectedUser(
-                id = userId,
-                name = userName
+                id = user.id,
+                name = user.name
             ),
             d2dStatus = status,
             geolocation = SendLocationRequest.GeoLocation(
@@ -118,28 +112,53 @@ abstract class BaseTagConnection(
         }
     } ?: SyncResult.FAILED_OTHER
 
-    fun syncLocation(onDemand: Boolean, resultCallback: (SyncResult) -> Unit = {}) {
-        syncLocationJob = scope.launch {
-            resultCallback(syncLocation(onDemand))
-        }.apply {
-            invokeOnCompletion { cause ->
-                //If the job was cancelled, send a result back still
-                if(cause is CancellationException) {
-                    resultCallback.invoke(SyncResult.FAILED_DISCONNECTED)
-                }
-            }
-        }
+    fun syncLocation(
+        onDemand: Boolean,
+        session: LocationSyncSession = LocationSyncSession(),
+        resultCallback: (SyncResult) -> Unit = {}
+    ) {
+        launchSyncLocation(onDemand, session, resultCallback)
     }
 
-    suspend fun syncLocationAndWait(onDemand: Boolean): SyncResult {
+    /**
+     *  Syncs the location, using [session] to share the location fix and user details with any
+     *  other Tags being synced at the same time. If the calling coroutine is cancelled (eg. by a
+     *  timeout), the sync is cancelled too.
+     */
+    suspend fun syncLocationAndWait(
+        onDemand: Boolean,
+        session: LocationSyncSession = LocationSyncSession()
+    ): SyncResult {
         var hasResumed = false
-        return suspendCoroutine { resume ->
-            syncLocation(onDemand) {
+        return suspendCancellableCoroutine { resume ->
+            val job = launchSyncLocation(onDemand, session) {
                 if(!hasResumed) {
                     hasResumed = true
                     resume.resume(it)
                 }
             }
+            resume.invokeOnCancellation {
+                job.cancel()
+            }
+        }
+    }
+
+    private fun launchSyncLocation(
+        onDemand: Boolean,
+        session: LocationSyncSession,
+        resultCallback: (SyncResult) -> Unit
+    ): Job {
+        return scope.launch {
+            resultCallback(syncLocation(onDemand, session))
+        }.apply {
+            invokeOnCompletion { cause ->
+                //If the job was cancelled, send a result back still
+                if(cause is CancellationException) {
+                    resultCallback.invoke(SyncResult.FAILED_DISCONNECTED)
+                }
+            }
+        }.also {
+            syncLocationJob = it
         }
     }
 
@@ -164,6 +183,7 @@ abstract class BaseTagConnection(
         FAILED_ALREADY_SYNCING,
         FAILED_DISCONNECTED,
         FAILED_AUTO_SYNC_NOT_REQUIRED,
+        FAILED_TIMEOUT,
         FAILED_OTHER
     }
 
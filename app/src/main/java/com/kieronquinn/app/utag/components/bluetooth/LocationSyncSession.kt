@@ -0,0 +1,74 @@
+package com.kieronquinn.app.utag.components.bluetooth
+
+import android.location.Location
+import com.kieronquinn.app.utag.components.bluetooth.BaseTagConnection.SyncResult
+import com.kieronquinn.app.utag.repositories.EncryptedSettingsRepository
+import com.kieronquinn.app.utag.repositories.SmartThingsRepository
+import com.kieronquinn.app.utag.repositories.UserRepository
+import kotlinx.coroutines.sync.Mutex
+import kotlinx.coroutines.sync.withLock
+import org.koin.core.component.KoinComponent
+import org.koin.core.component.inject
+
+/**
+ *  Data shared between the Tags synced in a single location refresh. The location fix and the
+ *  user's details are only loaded once, by whichever Tag needs them first, and then reused by the
+ *  rest. A new session is created for each refresh, so the location is never reused between them.
+ */
+class LocationSyncSession: KoinComponent {
+
+    private val smartThingsRepository by inject<SmartThingsRepository>()
+    private val userRepository by inject<UserRepository>()
+    private val encryptedSettingsRepository by inject<EncryptedSettingsRepository>()
+
+    private val startTime = System.currentTimeMillis()
+    private val locationLock = Mutex()
+    private val userLock = Mutex()
+    private var location: Location? = null
+    private var hasLoadedLocation = false
+    private var user: User? = null
+
+    suspend fun getLocation(): Location? = locationLock.withLock {
+        if(!hasLoadedLocation) {
+            location = smartThingsRepository.getLocation()
+            hasLoadedLocation = true
+        }
+        location
+    }
+
+    suspend fun getUser(): User? = userLock.withLock {
+        user?.let { return@withLock it }
+        val name = userRepository.getUserInfo()?.fullName ?: return@withLock null
+        val id = encryptedSettingsRepository.userId.getOrNull()?.takeIf {
+            it.isNotEmpty()
+        } ?: return@withLock null
+        User(id, name).also {
+            user = it
+        }
+    }
+
+    fun getSummary(results: Map<String, SyncResult>): Summary {
+        return Summary(
+            results,
+            System.currentTimeMillis() - startTime,
+            location.takeIf { hasLoadedLocation }
+        )
+    }
+
+    data class User(val id: String, val name: String)
+
+    data class Summary(
+        val results: Map<String, SyncResult>,
+        val duration: Long,
+        val location: Location?
+    ) {
+        val successCount = results.count { it.value == SyncResult.SUCCESS }
+        val hasLocation = location != null
+
+        override fun toString(): String {
+            val counts = results.values.groupingBy { it }.eachCount()
+            return "${results.size} Tags in ${duration}ms, location: $hasLocation, results: $counts"
+        }
+    }
+
+}
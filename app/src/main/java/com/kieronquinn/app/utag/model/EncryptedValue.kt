@@ -3,10 +3,10 @@ package com.kieronquinn.app.utag.model
 import android.os.Parcelable
 import androidx.room.TypeConverter
 import com.kieronquinn.app.utag.repositories.EncryptedSettingsRepository
+import com.kieronquinn.app.utag.utils.room.DatabaseCipher
 import kotlinx.parcelize.Parcelize
 import org.koin.core.component.KoinComponent
 import org.koin.core.component.inject
-import javax.crypto.Cipher
 
 /**
  *  ByteArray which is stored in the Room database in encrypted form, and encrypted/decrypted based
@@ -18,33 +18,19 @@ object EncryptedValueConverter: KoinComponent {
     const val ENCRYPTION_TRANSFORMATION = "AES/CBC/PKCS5PADDING"
 
     private val encryptedSettings by inject<EncryptedSettingsRepository>()
-    private val key = encryptedSettings.getDatabaseEncryptionKey()
-    private val iv = encryptedSettings.getDatabaseEncryptionIV()
+    private val key by lazy { encryptedSettings.getDatabaseEncryptionKey() }
+    private val iv by lazy { encryptedSettings.getDatabaseEncryptionIV() }
 
-    private val encryptionCipher = Cipher.getInstance(ENCRYPTION_TRANSFORMATION).apply {
-        init(Cipher.ENCRYPT_MODE, key, this@EncryptedValueConverter.iv)
-    }
-
-    private val decryptionCipher = Cipher.getInstance(ENCRYPTION_TRANSFORMATION).apply {
-        init(Cipher.DECRYPT_MODE, key, this@EncryptedValueConverter.iv)
-    }
+    private val cipher = DatabaseCipher(ENCRYPTION_TRANSFORMATION, { key }, { iv })
 
-    @Synchronized
     @TypeConverter
     fun fromBytes(value: ByteArray?): EncryptedValue? {
-        return value?.let {
-            try {
-                EncryptedValue(decryptionCipher.doFinal(it))
-            }catch (e: Exception) {
-                null
-            }
-        }
+        return value?.let { cipher.decryptOrNull(it) }?.let { EncryptedValue(it) }
     }
 
-    @Synchronized
     @TypeConverter
     fun fromEncryptedValue(value: EncryptedValue?): ByteArray? {
-        return value?.bytes?.let { encryptionCipher.doFinal(it) }
+        return value?.bytes?.let { cipher.encrypt(it) }
     }
 
 }
@@ -0,0 +1,44 @@
+package com.kieronquinn.app.utag.model.database
+
+import androidx.room.ColumnInfo
+import androidx.room.Entity
+import androidx.room.Index
+import androidx.room.PrimaryKey
+import com.google.gson.annotations.SerializedName
+import com.kieronquinn.app.utag.model.EncryptedValue
+
+/**
+ *  A non-owner Tag detection waiting to be sent to Chaser. Detections are grouped by [region] and
+ *  sent together, and the detection itself is stored as encrypted JSON.
+ */
+@Entity(indices = [Index("timestamp")])
+data class ChaserQueueItem(
+    @PrimaryKey(autoGenerate = true)
+    @ColumnInfo("id")
+    val id: Long = 0,
+    @ColumnInfo("region")
+    val region: String,
+    @ColumnInfo("timestamp")
+    val timestamp: Long,
+    @ColumnInfo("detection")
+    val detection: EncryptedValue
+) {
+    data class Detection(
+        @SerializedName("service_data")
+        val serviceData: String,
+        @SerializedName("rssi")
+        val rssi: Int,
+        @SerializedName("received_time")
+        val receivedTime: Long,
+        @SerializedName("latitude")
+        val latitude: Double,
+        @SerializedName("longitude")
+        val longitude: Double,
+        @SerializedName("accuracy")
+        val accuracy: Float,
+        @SerializedName("speed")
+        val speed: Float,
+        @SerializedName("provider")
+        val provider: String?
+    )
+}
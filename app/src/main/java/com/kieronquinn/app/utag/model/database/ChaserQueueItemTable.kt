@@ -0,0 +1,29 @@
+package com.kieronquinn.app.utag.model.database
+
+import androidx.room.Dao
+import androidx.room.Insert
+import androidx.room.OnConflictStrategy
+import androidx.room.Query
+
+@Dao
+interface ChaserQueueItemTable {
+
+    @Query("select * from ChaserQueueItem order by timestamp")
+    fun getItems(): List<ChaserQueueItem>
+
+    @Query("select min(timestamp) from ChaserQueueItem")
+    fun getOldestTimestamp(): Long?
+
+    @Query("select count(*) from ChaserQueueItem")
+    fun getCount(): Int
+
+    @Insert(onConflict = OnConflictStrategy.REPLACE)
+    fun insert(items: List<ChaserQueueItem>)
+
+    @Query("delete from ChaserQueueItem where id in (:ids)")
+    fun delete(ids: List<Long>)
+
+    @Query("delete from ChaserQueueItem")
+    fun clear()
+
+}
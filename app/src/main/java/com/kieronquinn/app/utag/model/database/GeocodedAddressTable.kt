@@ -8,12 +8,22 @@ import androidx.room.Query
 @Dao
 interface GeocodedAddressTable {
 
-    @Query("select * from `GeocodedAddress` where lat_lng_hash=:latLngHash")
-    fun getAddress(latLngHash: Int): GeocodedAddress?
+    @Query("select * from `GeocodedAddress` where cell_key=:cellKey")
+    fun getAddress(cellKey: String): GeocodedAddress?
+
+    @Query("select * from `GeocodedAddress` where cell_key in (:cellKeys)")
+    fun getAddresses(cellKeys: List<String>): List<GeocodedAddress>
 
     @Insert(onConflict = OnConflictStrategy.REPLACE)
     fun insert(address: GeocodedAddress)
 
+    @Query("delete from `GeocodedAddress` where timestamp < :timestamp")
+    fun deleteOlderThan(timestamp: Long)
+
+    @Query("delete from `GeocodedAddress` where cell_key not in " +
+            "(select cell_key from `GeocodedAddress` order by timestamp desc limit :count)")
+    fun trimToNewest(count: Int)
+
     @Query("delete from `GeocodedAddress`")
     fun clear()
 
@@ -0,0 +1,22 @@
+package com.kieronquinn.app.utag.model.database
+
+import androidx.room.ColumnInfo
+import androidx.room.Entity
+import com.kieronquinn.app.utag.model.EncryptedValue
+
+/**
+ *  A location history point which has previously been downloaded and decrypted, so it doesn't
+ *  need to be downloaded again. The primary key is the device ID's keyed hash plus the timestamp.
+ *  Only the device ID is hashed: the timestamp is stored in plaintext so points can be loaded and
+ *  trimmed by time, which means when each Tag was seen is readable without the database key. The
+ *  location itself is stored as encrypted JSON.
+ */
+@Entity(primaryKeys = ["device_key", "timestamp"])
+data class HistoryLocation(
+    @ColumnInfo("device_key")
+    val deviceKey: String,
+    @ColumnInfo("timestamp")
+    val timestamp: Long,
+    @ColumnInfo("location")
+    val location: EncryptedValue
+)
@@ -0,0 +1,26 @@
+package com.kieronquinn.app.utag.model.database
+
+import androidx.room.Dao
+import androidx.room.Insert
+import androidx.room.OnConflictStrategy
+import androidx.room.Query
+
+@Dao
+interface HistoryLocationTable {
+
+    @Query("select * from HistoryLocation where device_key=:deviceKey and timestamp >= :startTime order by timestamp asc")
+    fun getLocations(deviceKey: String, startTime: Long): List<HistoryLocation>
+
+    @Insert(onConflict = OnConflictStrategy.REPLACE)
+    fun insert(locations: List<HistoryLocation>)
+
+    @Query("delete from HistoryLocation where timestamp < :timestamp")
+    fun trim(timestamp: Long)
+
+    @Query("delete from HistoryLocation where device_key=:deviceKey")
+    fun clear(deviceKey: String)
+
+    @Query("delete from HistoryLocation")
+    fun clear()
+
+}
@@ -0,0 +1,19 @@
+package com.kieronquinn.app.utag.model.database
+
+import androidx.room.ColumnInfo
+import androidx.room.Entity
+import androidx.room.PrimaryKey
+
+/**
+ *  Records the time up to which a device's location history has been fully downloaded into
+ *  [HistoryLocation], so later loads only need to request newer points. The device ID is stored
+ *  as a keyed hash, matching [HistoryLocation.deviceKey].
+ */
+@Entity
+data class HistorySyncState(
+    @PrimaryKey
+    @ColumnInfo("device_key")
+    val deviceKey: String,
+    @ColumnInfo("synced_until")
+    val syncedUntil: Long
+)
@@ -0,0 +1,23 @@
+package com.kieronquinn.app.utag.model.database
+
+import androidx.room.Dao
+import androidx.room.Insert
+import androidx.room.OnConflictStrategy
+import androidx.room.Query
+
+@Dao
+interface HistorySyncStateTable {
+
+    @Query("select * from HistorySyncState where device_key=:deviceKey")
+    fun getSyncState(deviceKey: String): HistorySyncState?
+
+    @Insert(onConflict = OnConflictStrategy.REPLACE)
+    fun insert(syncState: HistorySyncState)
+
+    @Query("delete from HistorySyncState where device_key=:deviceKey")
+    fun clear(deviceKey: String)
+
+    @Query("delete from HistorySyncState")
+    fun clear()
+
+}
@@ -4,6 +4,7 @@ import androidx.room.Dao
 import androidx.room.Insert
 import androidx.room.OnConflictStrategy
 import androidx.room.Query
+import com.kieronquinn.app.utag.model.EncryptedValue
 import kotlinx.coroutines.flow.Flow
 
 @Dao
@@ -18,6 +19,20 @@ interface TagDataTable {
     @Insert(onConflict = OnConflictStrategy.REPLACE)
     fun insert(tagData: TagData)
 
+    @Query("update TagData set name=:name where device_id_hash=:deviceIdHash")
+    fun updateName(deviceIdHash: Int, name: EncryptedValue): Int
+
+    @Query(
+        "update TagData set last_service_data=:serviceData, ble_mac=:bleMac, " +
+                "service_data_timestamp=:timestamp where device_id_hash=:deviceIdHash"
+    )
+    fun updateServiceData(
+        deviceIdHash: Int,
+        serviceData: EncryptedValue,
+        bleMac: EncryptedValue,
+        timestamp: EncryptedValue
+    ): Int
+
     @Query("delete from TagData")
     fun clear()
 
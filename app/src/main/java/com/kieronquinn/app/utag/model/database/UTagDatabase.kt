@@ -5,23 +5,29 @@ import androidx.room.Database
 import androidx.room.Room
 import androidx.room.RoomDatabase
 import androidx.room.TypeConverters
+import androidx.room.migration.Migration
+import androidx.sqlite.db.SupportSQLiteDatabase
 import com.kieronquinn.app.utag.model.EncryptedValueConverter
 import com.kieronquinn.app.utag.utils.extensions.wrapAsApplicationContext
 
 @Database(entities = [
     AcknowledgedUnknownTag::class,
     AutomationConfig::class,
+    ChaserQueueItem::class,
     FindMyDeviceConfig::class,
     GeocodedAddress::class,
+    HistoryLocation::class,
+    HistorySyncState::class,
     TagData::class,
     LocationSafeArea::class,
     HistoryWidgetConfig::class,
     NotifyDisconnectConfig::class,
     PassiveModeConfig::class,
     UnknownTag::class,
+    UnknownTagState::class,
     WiFiSafeArea::class,
     WidgetConfig::class
-], version = 1, exportSchema = false)
+], version = 7, exportSchema = false)
 @TypeConverters(EncryptedValueConverter::class)
 abstract class UTagDatabase: RoomDatabase() {
 
@@ -31,11 +37,134 @@ abstract class UTagDatabase: RoomDatabase() {
                 context.wrapAsApplicationContext(),
                 UTagDatabase::class.java,
                 "utag.db"
+            ).addMigrations(
+                MIGRATION_1_2,
+                MIGRATION_2_3,
+                MIGRATION_3_4,
+                MIGRATION_4_5,
+                MIGRATION_5_6,
+                MIGRATION_6_7
             ).enableMultiInstanceInvalidation().build()
         }
+
+        /**
+         *  Geocoded addresses moved from an Int hash of the rounded location, which could collide,
+         *  to a keyed hash of the geocoding cell. The old hashes can't be converted, so the
+         *  addresses are dropped and will be geocoded again when needed.
+         */
+        private val MIGRATION_1_2 = object: Migration(1, 2) {
+            override fun migrate(db: SupportSQLiteDatabase) {
+                db.execSQL("DROP TABLE IF EXISTS `GeocodedAddress`")
+                db.execSQL(
+                    "CREATE TABLE IF NOT EXISTS `GeocodedAddress` (`cell_key` TEXT NOT NULL, " +
+                            "`address` BLOB NOT NULL, `timestamp` INTEGER NOT NULL, " +
+                            "PRIMARY KEY(`cell_key`))"
+                )
+                db.execSQL(
+                    "CREATE INDEX IF NOT EXISTS `index_GeocodedAddress_timestamp` " +
+                            "ON `GeocodedAddress` (`timestamp`)"
+                )
+            }
+        }
+
+        /**
+         *  Adds the local location history store
+         */
+        private val MIGRATION_2_3 = object: Migration(2, 3) {
+            override fun migrate(db: SupportSQLiteDatabase) {
+                db.execSQL(
+                    "CREATE TABLE IF NOT EXISTS `HistoryLocation` (`device_key` TEXT NOT NULL, " +
+                            "`timestamp` INTEGER NOT NULL, `location` BLOB NOT NULL, " +
+                            "PRIMARY KEY(`device_key`, `timestamp`))"
+                )
+                db.execSQL(
+                    "CREATE TABLE IF NOT EXISTS `HistorySyncState` (`device_key` TEXT NOT NULL, " +
+                            "`synced_until` INTEGER NOT NULL, PRIMARY KEY(`device_key`))"
+                )
+            }
+        }
+
+        /**
+         *  Adds the per-Tag detection summaries used for unknown Tag detection
+         */
+        private val MIGRATION_3_4 = object: Migration(3, 4) {
+            override fun migrate(db: SupportSQLiteDatabase) {
+                db.execSQL(
+                    "CREATE TABLE IF NOT EXISTS `UnknownTagState` (`privacy_key` TEXT NOT NULL, " +
+                            "`bucket` INTEGER NOT NULL, `summary` BLOB NOT NULL, " +
+                            "PRIMARY KEY(`privacy_key`, `bucket`))"
+                )
+                db.execSQL(
+                    "CREATE INDEX IF NOT EXISTS `index_UnknownTagState_bucket` " +
+                            "ON `UnknownTagState` (`bucket`)"
+                )
+            }
+        }
+
+        /**
+         *  Unknown Tag detections gained an indexed keyed hash of the privacy ID. This can't be
+         *  created for existing rows without decrypting them, and detections are only kept for a
+         *  day, so they are dropped along with their summaries.
+         */
+        private val MIGRATION_4_5 = object: Migration(4, 5) {
+            override fun migrate(db: SupportSQLiteDatabase) {
+                db.execSQL("DROP TABLE IF EXISTS `UnknownTag`")
+                db.execSQL(
+                    "CREATE TABLE IF NOT EXISTS `UnknownTag` (`id` INTEGER PRIMARY KEY " +
+                            "AUTOINCREMENT NOT NULL, `privacy_key` TEXT NOT NULL, " +
+                            "`timestamp` INTEGER NOT NULL, `mac` BLOB, `rssi` BLOB NOT NULL, " +
+                            "`latitude` BLOB NOT NULL, `longitude` BLOB NOT NULL, " +
+                            "`service_data` BLOB NOT NULL)"
+                )
+                db.execSQL(
+                    "CREATE INDEX IF NOT EXISTS `index_UnknownTag_privacy_key_timestamp` " +
+                            "ON `UnknownTag` (`privacy_key`, `timestamp`)"
+                )
+                db.execSQL(
+                    "CREATE INDEX IF NOT EXISTS `index_UnknownTag_timestamp` " +
+                            "ON `UnknownTag` (`timestamp`)"
+                )
+                db.execSQL("DELETE FROM `UnknownTagState`")
+            }
+        }
+
+        /**
+         *  Adds the queue of detections waiting to be sent to Chaser
+         */
+        private val MIGRATION_5_6 = object: Migration(5, 6) {
+            override fun migrate(db: SupportSQLiteDatabase) {
+                db.execSQL(
+                    "CREATE TABLE IF NOT EXISTS `ChaserQueueItem` (`id` INTEGER PRIMARY KEY " +
+                            "AUTOINCREMENT NOT NULL, `region` TEXT NOT NULL, " +
+                            "`timestamp` INTEGER NOT NULL, `detection` BLOB NOT NULL)"
+                )
+                db.execSQL(
+                    "CREATE INDEX IF NOT EXISTS `index_ChaserQueueItem_timestamp` " +
+                            "ON `ChaserQueueItem` (`timestamp`)"
+                )
+            }
+        }
+
+        /**
+         *  Lookup keys are now created with a key derived from the encryption key, rather than the
+         *  encryption key itself. Existing rows can't be found with the new keys, so are removed.
+         *  Addresses and location history will be loaded again when needed.
+         */
+        private val MIGRATION_6_7 = object: Migration(6, 7) {
+            override fun migrate(db: SupportSQLiteDatabase) {
+                db.execSQL("DELETE FROM `GeocodedAddress`")
+                db.execSQL("DELETE FROM `HistoryLocation`")
+                db.execSQL("DELETE FROM `HistorySyncState`")
+                db.execSQL("DELETE FROM `UnknownTag`")
+                db.execSQL("DELETE FROM `UnknownTagState`")
+            }
+        }
     }
 
+    abstract fun chaserQueueItemTable(): ChaserQueueItemTable
     abstract fun geocodedAddressTable(): GeocodedAddressTable
+    abstract fun historyLocationTable(): HistoryLocationTable
+    abstract fun historySyncStateTable(): HistorySyncStateTable
     abstract fun tagDataTable(): TagDataTable
     abstract fun findMyDeviceConfigTable(): FindMyDeviceConfigTable
     abstract fun automationConfigTable(): AutomationConfigTable
@@ -46,6 +175,7 @@ abstract class UTagDatabase: RoomDatabase() {
     abstract fun locationWidgetConfigTable(): HistoryWidgetConfigTable
     abstract fun passiveModeConfigTable(): PassiveModeConfigTable
     abstract fun unknownTagTable(): UnknownTagTable
+    abstract fun unknownTagStateTable(): UnknownTagStateTable
     abstract fun acknowledgedUnknownTagTable(): AcknowledgedUnknownTagTable
 
 }
\ No newline at end of file
@@ -2,14 +2,22 @@ package com.kieronquinn.app.utag.model.database
 
 import androidx.room.ColumnInfo
 import androidx.room.Entity
+import androidx.room.Index
 import androidx.room.PrimaryKey
 import com.kieronquinn.app.utag.model.EncryptedValue
 
-@Entity
+/**
+ *  A detection of an unknown Tag. The privacy ID is stored as a keyed hash alongside the
+ *  unencrypted timestamp, so detections can be grouped, counted and trimmed by the database
+ *  without decrypting them.
+ */
+@Entity(indices = [Index("privacy_key", "timestamp"), Index("timestamp")])
 data class UnknownTag(
     @PrimaryKey(autoGenerate = true)
     @ColumnInfo("id")
     val id: Long = 0,
+    @ColumnInfo("privacy_key")
+    val privacyKey: String,
     @ColumnInfo("timestamp")
     val timestamp: Long,
     @ColumnInfo("mac")
@@ -22,4 +30,15 @@ data class UnknownTag(
     val longitude: EncryptedValue,
     @ColumnInfo("service_data")
     val serviceData: EncryptedValue
-)
+) {
+    data class Count(
+        @ColumnInfo("privacy_key")
+        val privacyKey: String,
+        @ColumnInfo("count")
+        val count: Int,
+        @ColumnInfo("first_seen")
+        val firstSeen: Long,
+        @ColumnInfo("last_seen")
+        val lastSeen: Long
+    )
+}
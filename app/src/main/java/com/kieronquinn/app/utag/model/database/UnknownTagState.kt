@@ -0,0 +1,87 @@
+package com.kieronquinn.app.utag.model.database
+
+import androidx.room.ColumnInfo
+import androidx.room.Entity
+import androidx.room.Index
+import com.google.android.gms.maps.model.LatLng
+import com.google.android.gms.maps.model.LatLngBounds
+import com.google.gson.annotations.SerializedName
+import com.kieronquinn.app.utag.model.EncryptedValue
+
+/**
+ *  Running summary of an unknown Tag's detections within one [bucket] (hours since the epoch),
+ *  which is all that's needed to check if the Tag is following the user. The privacy ID is stored
+ *  as a keyed hash, and the summary itself is stored as encrypted JSON.
+ */
+@Entity(primaryKeys = ["privacy_key", "bucket"], indices = [Index("bucket")])
+data class UnknownTagState(
+    @ColumnInfo("privacy_key")
+    val privacyKey: String,
+    @ColumnInfo("bucket")
+    val bucket: Long,
+    @ColumnInfo("summary")
+    val summary: EncryptedValue
+) {
+    /**
+     *  The location bounds work the same as [LatLngBounds], so are safe across the antimeridian:
+     *  [minLongitude] is the western edge and [maxLongitude] the eastern, which may be lower if the
+     *  bounds cross it.
+     */
+    data class Summary(
+        @SerializedName("privacy_id")
+        val privacyId: String,
+        @SerializedName("count")
+        val count: Int,
+        @SerializedName("first_seen")
+        val firstSeen: Long,
+        @SerializedName("last_seen")
+        val lastSeen: Long,
+        @SerializedName("min_latitude")
+        val minLatitude: Double,
+        @SerializedName("max_latitude")
+        val maxLatitude: Double,
+        @SerializedName("min_longitude")
+        val minLongitude: Double,
+        @SerializedName("max_longitude")
+        val maxLongitude: Double
+    ) {
+        val bounds
+            get() = LatLngBounds(
+                LatLng(minLatitude, minLongitude),
+                LatLng(maxLatitude, maxLongitude)
+            )
+
+        fun plus(timestamp: Long, latitude: Double, longitude: Double) = copy(
+            count = count + 1,
+            firstSeen = minOf(firstSeen, timestamp),
+            lastSeen = maxOf(lastSeen, timestamp)
+        ).withBounds(bounds.including(LatLng(latitude, longitude)))
+
+        fun plus(other: Summary) = copy(
+            count = count + other.count,
+            firstSeen = minOf(firstSeen, other.firstSeen),
+            lastSeen = maxOf(lastSeen, other.lastSeen)
+        ).withBounds(bounds.including(other.bounds.southwest).including(other.bounds.northeast))
+
+        private fun withBounds(bounds: LatLngBounds) = copy(
+            minLatitude = bounds.southwest.latitude,
+            maxLatitude = bounds.northeast.latitude,
+            minLongitude = bounds.southwest.longitude,
+            maxLongitude = bounds.northeast.longitude
+        )
+
+        companion object {
+            fun create(privacyId: String, timestamp: Long, latitude: Double, longitude: Double) =
+                Summary(
+                    privacyId = privacyId,
+                    count = 1,
+                    firstSeen = timestamp,
+                    lastSeen = timestamp,
+                    minLatitude = latitude,
+                    maxLatitude = latitude,
+                    minLongitude = longitude,
+                    maxLongitude = longitude
+                )
+        }
+    }
+}
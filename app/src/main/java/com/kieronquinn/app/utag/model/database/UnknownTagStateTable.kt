@@ -0,0 +1,23 @@
+package com.kieronquinn.app.utag.model.database
+
+import androidx.room.Dao
+import androidx.room.Insert
+import androidx.room.OnConflictStrategy
+import androidx.room.Query
+
+@Dao
+interface UnknownTagStateTable {
+
+    @Query("select * from UnknownTagState where bucket >= :bucket")
+    fun getStates(bucket: Long): List<UnknownTagState>
+
+    @Insert(onConflict = OnConflictStrategy.REPLACE)
+    fun insert(states: List<UnknownTagState>)
+
+    @Query("delete from UnknownTagState where bucket < :bucket")
+    fun trim(bucket: Long)
+
+    @Query("delete from UnknownTagState")
+    fun clear()
+
+}
@@ -6,14 +6,49 @@ import androidx.room.OnConflictStrategy
 import androidx.room.Query
 import kotlinx.coroutines.flow.Flow
 
+/**
+ *  Detections are only trimmed periodically, so queries which are used to check if a Tag is
+ *  following the user also filter out detections older than `maxAge` themselves. The cutoff is
+ *  calculated by SQLite, so it stays current when observed queries are re-run.
+ */
+private const val WITHIN_MAX_AGE = "timestamp >= strftime('%s', 'now') * 1000 - :maxAge"
+
 @Dao
 interface UnknownTagTable {
 
-    @Query("select * from UnknownTag")
-    fun getTags(): Flow<List<UnknownTag>>
+    @Query(
+        "select * from UnknownTag where privacy_key=:privacyKey and $WITHIN_MAX_AGE " +
+                "order by timestamp"
+    )
+    fun getDetections(privacyKey: String, maxAge: Long): Flow<List<UnknownTag>>
+
+    @Query(
+        "select * from UnknownTag where privacy_key in (:privacyKeys) and $WITHIN_MAX_AGE " +
+                "order by timestamp"
+    )
+    fun getDetections(privacyKeys: List<String>, maxAge: Long): List<UnknownTag>
+
+    @Query(
+        "select * from UnknownTag where privacy_key=:privacyKey and timestamp >= :from " +
+                "and timestamp < :to order by timestamp"
+    )
+    fun getDetections(privacyKey: String, from: Long, to: Long): List<UnknownTag>
+
+    /**
+     *  Returns the detection count and time range of each Tag which has been seen at least twice,
+     *  over at least [minDuration]. Only these Tags can meet the requirements to be considered
+     *  following, so only their detections need to be loaded.
+     */
+    @Query(
+        "select privacy_key, count(*) as count, min(timestamp) as first_seen, " +
+                "max(timestamp) as last_seen from UnknownTag where $WITHIN_MAX_AGE " +
+                "group by privacy_key " +
+                "having count(*) >= 2 and max(timestamp) - min(timestamp) >= :minDuration"
+    )
+    fun getCandidates(minDuration: Long, maxAge: Long): Flow<List<UnknownTag.Count>>
 
     @Insert(onConflict = OnConflictStrategy.REPLACE)
-    fun insert(unknownTag: UnknownTag)
+    fun insert(unknownTags: List<UnknownTag>)
 
     @Query("delete from UnknownTag where timestamp < :timestamp")
     fun trim(timestamp: Long)
@@ -21,4 +56,4 @@ interface UnknownTagTable {
     @Query("delete from UnknownTag")
     fun clear()
 
-}
\ No newline at end of file
+}
@@ -5,17 +5,21 @@ import androidx.room.Database
 import androidx.room.Room
 import androidx.room.RoomDatabase
 import androidx.room.TypeConverters
+import androidx.room.migration.Migration
+import androidx.sqlite.db.SupportSQLiteDatabase
 import com.kieronquinn.app.utag.model.EncryptedValueConverter
 import com.kieronquinn.app.utag.utils.extensions.wrapAsApplicationContext
 import java.io.File
 
 @Database(entities = [
     CacheItem::class
-], version = 1, exportSchema = false)
+], version = 3, exportSchema = false)
 @TypeConverters(EncryptedValueConverter::class)
 abstract class CacheDatabase: RoomDatabase() {
 
     companion object {
+        const val TABLE_CACHE_ITEM = "CacheItem"
+
         fun getDatabase(context: Context): CacheDatabase {
             val cacheFolder = context.cacheDir.apply {
                 mkdirs()
@@ -25,10 +29,40 @@ abstract class CacheDatabase: RoomDatabase() {
                 context.wrapAsApplicationContext(),
                 CacheDatabase::class.java,
                 cacheDbFile.absolutePath
+            ).addMigrations(
+                MIGRATION_1_2,
+                MIGRATION_2_3
             ).enableMultiInstanceInvalidation().build()
         }
+
+        /**
+         *  Version 1 used a random ID as the primary key, which required decrypting every row to
+         *  find an item. The lookup key can't be generated from SQL, and this is only a cache, so
+         *  the old table is dropped and recreated with the new schema. Items will be re-cached
+         *  on their next successful load.
+         */
+        private val MIGRATION_1_2 = object: Migration(1, 2) {
+            override fun migrate(db: SupportSQLiteDatabase) {
+                db.execSQL("DROP TABLE IF EXISTS `CacheItem`")
+                db.execSQL(
+                    "CREATE TABLE IF NOT EXISTS `CacheItem` (`lookup_key` TEXT NOT NULL, " +
+                            "`type` BLOB NOT NULL, `sub_type` BLOB, `data` BLOB NOT NULL, " +
+                            "PRIMARY KEY(`lookup_key`))"
+                )
+            }
+        }
+
+        /**
+         *  Lookup keys are now created with a key derived from the encryption key, so existing
+         *  items can't be found and are removed
+         */
+        private val MIGRATION_2_3 = object: Migration(2, 3) {
+            override fun migrate(db: SupportSQLiteDatabase) {
+                db.execSQL("DELETE FROM `CacheItem`")
+            }
+        }
     }
 
     abstract fun cacheItemTable(): CacheItemTable
 
-}
\ No newline at end of file
+}
@@ -5,20 +5,22 @@ import androidx.room.Entity
 import androidx.room.PrimaryKey
 import com.kieronquinn.app.utag.model.EncryptedValue
 import com.kieronquinn.app.utag.model.database.cache.CacheItem.CacheType
-import java.util.UUID
+import com.kieronquinn.app.utag.utils.extensions.createLookupKey
+import javax.crypto.SecretKey
 
 /**
  *  Stores data in the cache database. Each item should have a type (one of [CacheType]), and can
  *  also have a subtype, for example a device ID. The data should be JSON.
  *
- *  All values other than the ID are encrypted, when updating the cache conflicting items are
- *  checked for and removed.
+ *  Items are looked up by [lookupKey], which is a keyed hash of the type and subtype (see
+ *  [createLookupKey]). This allows a single indexed select or replace, rather than decrypting
+ *  every row to find a match. All other values are encrypted.
  */
 @Entity
 data class CacheItem(
     @PrimaryKey
-    @ColumnInfo("id")
-    val id: String = UUID.randomUUID().toString(),
+    @ColumnInfo("lookup_key")
+    val lookupKey: String,
     @ColumnInfo("type")
     val type: EncryptedValue,
     @ColumnInfo("sub_type")
@@ -27,6 +29,17 @@ data class CacheItem(
     val data: EncryptedValue
 ) {
 
+    companion object {
+        /**
+         *  Creates a deterministic lookup key for a given [type] and [subType], keyed with [key].
+         *  The key does not reveal the type or subtype, but will always be the same for the same
+         *  inputs, so can be used as the primary key.
+         */
+        fun createLookupKey(key: SecretKey, type: CacheType, subType: String?): String {
+            return key.createLookupKey(*listOfNotNull(type.name, subType).toTypedArray())
+        }
+    }
+
     enum class CacheType {
         CURRENT_INSTALLED_APP_ID,
         USER_OPTIONS,
@@ -1,7 +1,6 @@
 package com.kieronquinn.app.utag.model.database.cache
 
 import androidx.room.Dao
-import androidx.room.Delete
 import androidx.room.Insert
 import androidx.room.OnConflictStrategy
 import androidx.room.Query
@@ -9,16 +8,13 @@ import androidx.room.Query
 @Dao
 interface CacheItemTable {
 
-    @Query("select * from CacheItem")
-    fun get(): List<CacheItem>
+    @Query("select * from CacheItem where lookup_key=:lookupKey limit 1")
+    fun get(lookupKey: String): CacheItem?
 
     @Insert(onConflict = OnConflictStrategy.REPLACE)
     fun insert(item: CacheItem)
 
-    @Delete
-    fun delete(item: CacheItem)
-
     @Query("delete from CacheItem")
     fun clear()
 
-}
\ No newline at end of file
+}
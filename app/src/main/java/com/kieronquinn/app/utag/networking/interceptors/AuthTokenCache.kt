@@ -0,0 +1,138 @@
+package com.kieronquinn.app.utag.networking.interceptors
+
+import android.content.Context
+import com.kieronquinn.app.utag.providers.AuthProvider
+import com.kieronquinn.app.utag.providers.AuthProvider.Credentials
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.MainScope
+import kotlinx.coroutines.launch
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ *  Per-process cache of the credentials used by [SmartThingsAuthInterceptor] and
+ *  [FindAuthInterceptor], so each request doesn't need to make calls to [AuthProvider].
+ *
+ *  - Credentials are dropped when the main process notifies [AuthProvider.onChange], so they are
+ *  reloaded on the next request.
+ *  - Tokens within [REFRESH_MARGIN] of expiring are refreshed in the background, or before the
+ *  request if they have already expired.
+ *  - Refreshes are done one at a time per token type. If the token has already changed by the
+ *  time a refresh would run, it is skipped, so concurrent 401s only cause a single refresh.
+ */
+class AuthTokenCache(private val context: Context) {
+
+    companion object {
+        private const val REFRESH_MARGIN = 10 * 60 * 1000L
+    }
+
+    enum class Type {
+        SMARTTHINGS, FIND
+    }
+
+    private val scope = MainScope()
+    private val credentials = ConcurrentHashMap<Type, Credentials>()
+    private val locks = Type.entries.associateWith { Any() }
+    private val backgroundRefreshes = ConcurrentHashMap.newKeySet<Type>()
+
+    @Volatile
+    private var generation = 0
+
+    /**
+     *  BLOCKING CALL, only to be used in interceptor
+     */
+    fun getCredentials(type: Type): Credentials? {
+        val current = credentials[type] ?: synchronized(lock(type)) {
+            credentials[type] ?: load(type)
+        } ?: return null
+        val now = System.currentTimeMillis()
+        return when {
+            current.expiryTime <= 0L -> current
+            now >= current.expiryTime -> {
+                refresh(type, current.token)
+                credentials[type] ?: current
+            }
+            now >= current.expiryTime - REFRESH_MARGIN -> {
+                refreshInBackground(type, current.token)
+                current
+            }
+            else -> current
+        }
+    }
+
+    /**
+     *  Returns the cached credentials without loading or refreshing them, so is safe to call from
+     *  any thread. These may be missing or expired, the interceptor will correct them if so.
+     */
+    fun peekCredentials(type: Type): Credentials? {
+        return credentials[type]
+    }
+
+    /**
+     *  Refreshes the token if it is still [failedToken], otherwise returns straight away since
+     *  another request has already refreshed it. Returns whether a new token is available.
+     *
+     *  BLOCKING CALL, only to be used in interceptor
+     */
+    fun refresh(type: Type, failedToken: String?): Boolean = synchronized(lock(type)) {
+        val current = credentials[type] ?: load(type)
+        if(current != null && current.token != failedToken) {
+            return@synchronized true
+        }
+        val result = when(type) {
+            Type.SMARTTHINGS -> AuthProvider.refreshSmartThingsToken(context)
+            Type.FIND -> AuthProvider.refreshFindToken(context)
+        }
+        credentials.remove(type)
+        if(result) {
+            load(type)
+        }
+        result
+    }
+
+    private fun refreshInBackground(type: Type, token: String) {
+        if(!backgroundRefreshes.add(type)) return
+        scope.launch(Dispatchers.IO) {
+            try {
+                refresh(type, token)
+            }finally {
+                backgroundRefreshes.remove(type)
+            }
+        }
+    }
+
+    /**
+     *  Loads the credentials from [AuthProvider], only caching them if they weren't invalidated
+     *  while loading. Must be called holding the lock for [type].
+     */
+    private fun load(type: Type): Credentials? {
+        val loadGeneration = generation
+        val loaded = when(type) {
+            Type.SMARTTHINGS -> AuthProvider.getSmartThingsCredentials(context)
+            Type.FIND -> AuthProvider.getFindCredentials(context)
+        } ?: return null
+        if(loadGeneration == generation) {
+            credentials[type] = loaded
+        }
+        return loaded
+    }
+
+    private fun invalidate() {
+        generation++
+        credentials.clear()
+    }
+
+    private fun lock(type: Type): Any {
+        return locks.getValue(type)
+    }
+
+    private fun setupInvalidation() = scope.launch {
+        AuthProvider.onChange(context).collect {
+            invalidate()
+        }
+    }
+
+    init {
+        setupInvalidation()
+    }
+
+}
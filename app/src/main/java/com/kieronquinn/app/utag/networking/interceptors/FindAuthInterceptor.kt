@@ -1,6 +1,7 @@
 package com.kieronquinn.app.utag.networking.interceptors
 
 import android.content.Context
+import com.kieronquinn.app.utag.networking.interceptors.AuthTokenCache.Type
 import com.kieronquinn.app.utag.providers.AuthProvider
 import com.kieronquinn.app.utag.repositories.AnalyticsRepository
 import com.kieronquinn.app.utag.utils.extensions.Locale_getDefaultWithCountry
@@ -21,13 +22,15 @@ class FindAuthInterceptor(private val context: Context): Interceptor, KoinCompon
     }
 
     private val analyticsRepository by inject<AnalyticsRepository>()
+    private val authTokenCache by inject<AuthTokenCache>()
 
     override fun intercept(chain: Interceptor.Chain): Response {
-        val request = chain.request().withAuthToken()
+        val credentials = authTokenCache.getCredentials(Type.FIND)
+        val request = chain.request().withAuthToken(credentials)
         val response = chain.proceed(request)
         //A 403 is sometimes returned if the token is not valid
         if(response.code == 401 || response.code == 403) {
-            if(!AuthProvider.refreshFindToken(context)) {
+            if(!authTokenCache.refresh(Type.FIND, credentials?.token)) {
                 analyticsRepository.recordNonFatal(LogoutNonFatalException(request.url))
                 //Failed to refresh token, logout and return errored response
                 AuthProvider.clearCredentials(context)
@@ -35,26 +38,27 @@ class FindAuthInterceptor(private val context: Context): Interceptor, KoinCompon
             }else{
                 response.close()
                 //Apply the new token and proceed
-                return chain.proceed(request.withAuthToken())
+                val newCredentials = authTokenCache.getCredentials(Type.FIND)
+                return chain.proceed(request.withAuthToken(newCredentials))
             }
         }
         return response
     }
 
-    private fun Request.withAuthToken(): Request {
+    private fun Request.withAuthToken(credentials: AuthProvider.Credentials?): Request {
         return newBuilder().apply {
             removeHeader(HEADER_USER_ID)
-            AuthProvider.getUserId(context)?.let {
+            credentials?.userId?.let {
                 addHeader(HEADER_USER_ID, it)
             }
             removeHeader(HEADER_COUNTRY_CODE)
             addHeader(HEADER_COUNTRY_CODE, Locale_getDefaultWithCountry().getISO3Country())
             removeHeader(HEADER_AUTH_SERVER_URL)
-            AuthProvider.getAuthServerUrl(context)?.let {
+            credentials?.authServerUrl?.let {
                 addHeader(HEADER_AUTH_SERVER_URL, it)
             }
             removeHeader(HEADER_AUTH_TOKEN)
-            AuthProvider.getFindToken(context)?.let {
+            credentials?.token?.let {
                 addHeader(HEADER_AUTH_TOKEN, it)
             }
         }.build()
@@ -2,6 +2,7 @@ package com.kieronquinn.app.utag.networking.interceptors
 
 import android.content.Context
 import com.google.gson.Gson
+import com.kieronquinn.app.utag.networking.interceptors.AuthTokenCache.Type
 import com.kieronquinn.app.utag.networking.model.smartthings.InstalledAppsRequest
 import com.kieronquinn.app.utag.providers.AuthProvider
 import com.kieronquinn.app.utag.repositories.AnalyticsRepository
@@ -15,6 +16,7 @@ import okhttp3.RequestBody.Companion.toRequestBody
 import okhttp3.Response
 import org.koin.core.component.KoinComponent
 import org.koin.core.component.inject
+import retrofit2.Invocation
 
 class SmartThingsAuthInterceptor(
     private val context: Context,
@@ -39,12 +41,14 @@ class SmartThingsAuthInterceptor(
     private val smartThingsRepository by inject<SmartThingsRepository>()
     private val analyticsRepository by inject<AnalyticsRepository>()
     private val gson by inject<Gson>()
+    private val authTokenCache by inject<AuthTokenCache>()
 
     override fun intercept(chain: Interceptor.Chain): Response {
-        val request = chain.request().withAuthToken()
+        val credentials = authTokenCache.getCredentials(Type.SMARTTHINGS)
+        val request = chain.request().withAuthToken(credentials)
         val response = chain.proceed(request)
         if(response.code == 401) {
-            if(!AuthProvider.refreshSmartThingsToken(context)) {
+            if(!authTokenCache.refresh(Type.SMARTTHINGS, credentials?.token)) {
                 analyticsRepository.recordNonFatal(LogoutNonFatalException(request.url))
                 //Failed to refresh token, logout and return errored response
                 AuthProvider.clearCredentials(context)
@@ -52,13 +56,20 @@ class SmartThingsAuthInterceptor(
             }else{
                 response.close()
                 //Apply the new token and proceed
-                return chain.proceed(request.withAuthToken())
+                val newCredentials = authTokenCache.getCredentials(Type.SMARTTHINGS)
+                return chain.proceed(request.withAuthToken(newCredentials))
             }
         }
         return response
     }
 
-    private fun Request.withAuthToken(): Request {
+    /**
+     *  Applies the auth & client headers. Request bodies which contain the token usually already
+     *  have it set in [InstalledAppsRequest.createRequest], which is checked from the typed
+     *  request rather than by parsing the body. The body is only updated (if [updateBody] is set)
+     *  when that token differs from the one in the header, such as when retrying after a refresh.
+     */
+    private fun Request.withAuthToken(credentials: AuthProvider.Credentials?): Request {
         return newBuilder().apply {
             //V6 header always overrides the default
             if(headers[HEADER_ACCEPT] != HEADER_ACCEPT_V6) {
@@ -68,7 +79,7 @@ class SmartThingsAuthInterceptor(
             removeHeader(HEADER_ACCEPT_LANGUAGE)
             addHeader(HEADER_ACCEPT_LANGUAGE, Locale_getDefaultWithCountry().toLanguageTag())
             removeHeader(HEADER_AUTHORIZATION)
-            val token = AuthProvider.getSmartThingsToken(context)
+            val token = credentials?.token
             if(token != null) {
                 addHeader(HEADER_AUTHORIZATION, "Bearer $token")
             }
@@ -82,8 +93,8 @@ class SmartThingsAuthInterceptor(
             addHeader(HEADER_OS, smartThingsRepository.os)
             removeHeader(HEADER_CORRELATION)
             addHeader(HEADER_CORRELATION, smartThingsRepository.correlationId)
-            val userId = AuthProvider.getUserId(context)
-            if(updateBody && token != null) {
+            val userId = credentials?.userId
+            if(updateBody && token != null && !hasRequestCredentials(token, userId)) {
                 body?.updateBody(token, userId)?.let {
                     post(it)
                 }
@@ -91,6 +102,19 @@ class SmartThingsAuthInterceptor(
         }.build()
     }
 
+    /**
+     *  Returns whether the [InstalledAppsRequest] this request was created from already contains
+     *  [authToken] and [userId]. Retrofit tags each request with its [Invocation], so this doesn't
+     *  need the body to be read.
+     */
+    private fun Request.hasRequestCredentials(authToken: String, userId: String?): Boolean {
+        val request = tag(Invocation::class.java)?.arguments()
+            ?.filterIsInstance<InstalledAppsRequest>()?.firstOrNull() ?: return false
+        val currentToken = request.parameters.get(FIELD_NAME_TOKEN)?.takeIf { it.isJsonPrimitive }
+        val currentUserId = request.parameters.get(FIELD_NAME_REQUESTER)?.takeIf { it.isJsonPrimitive }
+        return currentToken?.asString == authToken && currentUserId?.asString == userId
+    }
+
     private fun RequestBody.updateBody(authToken: String, userId: String?): RequestBody? {
         val body = gson.fromJson(bodyToString(), InstalledAppsRequest::class.java) ?: return null
         val updatedBody = body.copy(
@@ -7,6 +7,8 @@ data class TokenResponse(
     val accessToken: String,
     @SerializedName("refresh_token")
     val refreshToken: String,
+    @SerializedName("expires_in") //Seconds, not always provided
+    val expiresIn: Long?,
     @SerializedName("userId") //Only provided on initial call
     val userId: String?
 )
@@ -5,6 +5,8 @@ import android.util.Base64
 import com.google.gson.Gson
 import com.google.gson.JsonObject
 import com.google.gson.annotations.SerializedName
+import com.kieronquinn.app.utag.networking.interceptors.AuthTokenCache
+import com.kieronquinn.app.utag.networking.interceptors.AuthTokenCache.Type
 import com.kieronquinn.app.utag.networking.model.smartthings.InstalledAppsRequest.Client.DisplayMode
 import com.kieronquinn.app.utag.repositories.AuthRepository
 import com.kieronquinn.app.utag.repositories.SmartThingsRepository
@@ -27,7 +29,13 @@ data class InstalledAppsRequest(
         private val authRepository by inject<AuthRepository>()
         private val smartThingsRepository by inject<SmartThingsRepository>()
         private val context by inject<Context>()
+        private val authTokenCache by inject<AuthTokenCache>()
 
+        /**
+         *  Creates a request with the cached user ID and token already set, so the interceptor
+         *  doesn't usually need to rewrite the body. This doesn't block to load or refresh the
+         *  token, if it's missing or has changed, the interceptor will update the body.
+         */
         fun createRequest(
             method: Method,
             uri: String,
@@ -44,6 +52,7 @@ data class InstalledAppsRequest(
                 DisplayMode.LIGHT
             }
             val timeZoneOffset = ZonedDateTime.now().getUtcOffset()
+            val credentials = authTokenCache.peekCredentials(Type.SMARTTHINGS)
             val client = Client(
                 displayMode = displayMode,
                 language = Locale_getDefaultWithCountry().toLanguageTag(),
@@ -53,9 +62,8 @@ data class InstalledAppsRequest(
                 version = smartThingsRepository.smartThingsVersion
             )
             val parameters = Parameters(
-                //User ID & token are injected in the interceptor
-                requester = "",
-                requesterToken = "",
+                requester = credentials?.userId,
+                requesterToken = credentials?.token ?: "",
                 method = method.value,
                 uri = uri,
                 extraUri = extraUri,
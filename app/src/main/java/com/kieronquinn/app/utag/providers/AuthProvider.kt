@@ -2,10 +2,13 @@ package com.kieronquinn.app.utag.providers
 
 import android.content.ContentResolver
 import android.content.Context
+import android.net.Uri
 import android.os.Bundle
 import androidx.core.os.bundleOf
 import com.kieronquinn.app.utag.BuildConfig
 import com.kieronquinn.app.utag.repositories.AuthRepository
+import com.kieronquinn.app.utag.utils.extensions.observerAsFlow
+import kotlinx.coroutines.flow.Flow
 import org.koin.android.ext.android.inject
 
 /**
@@ -18,6 +21,15 @@ class AuthProvider: BaseProvider() {
     companion object {
         private const val AUTHORITY = "${BuildConfig.APPLICATION_ID}.auth"
         private const val KEY_RESULT = "result"
+        private const val KEY_TOKEN = "token"
+        private const val KEY_EXPIRY_TIME = "expiry_time"
+        private const val KEY_USER_ID = "user_id"
+        private const val KEY_AUTH_SERVER_URL = "auth_server_url"
+
+        private val URI = Uri.Builder()
+            .scheme("content")
+            .authority(AUTHORITY)
+            .build()
         
         fun getUserId(context: Context): String? {
             return context.contentResolver.getString(Method.GET_USER_ID)
@@ -46,6 +58,33 @@ class AuthProvider: BaseProvider() {
         fun clearCredentials(context: Context): Boolean {
             return context.contentResolver.getBoolean(Method.CLEAR_CREDENTIALS)
         }
+
+        /**
+         *  Returns the SmartThings token along with its expiry time and the user's details, in a
+         *  single call
+         */
+        fun getSmartThingsCredentials(context: Context): Credentials? {
+            return context.contentResolver.getCredentials(Method.GET_SMARTTHINGS_CREDENTIALS)
+        }
+
+        /**
+         *  Returns the Find token along with its expiry time and the user's details, in a single
+         *  call
+         */
+        fun getFindCredentials(context: Context): Credentials? {
+            return context.contentResolver.getCredentials(Method.GET_FIND_CREDENTIALS)
+        }
+
+        /**
+         *  Called from the main process when any of the stored credentials change
+         */
+        fun notifyChange(context: Context) {
+            context.contentResolver.notifyChange(URI, null)
+        }
+
+        fun onChange(context: Context): Flow<Uri?> {
+            return context.contentResolver.observerAsFlow(URI)
+        }
         
         private fun ContentResolver.getString(method: Method): String? {
             return call(AUTHORITY, method.name, null, null)?.getString(KEY_RESULT)
@@ -55,6 +94,16 @@ class AuthProvider: BaseProvider() {
             return call(AUTHORITY, method.name, null, null)?.getBoolean(KEY_RESULT)
                 ?: false
         }
+
+        private fun ContentResolver.getCredentials(method: Method): Credentials? {
+            val result = call(AUTHORITY, method.name, null, null) ?: return null
+            return Credentials(
+                result.getString(KEY_TOKEN) ?: return null,
+                result.getLong(KEY_EXPIRY_TIME),
+                result.getString(KEY_USER_ID),
+                result.getString(KEY_AUTH_SERVER_URL)
+            )
+        }
         
         private enum class Method {
             GET_USER_ID,
@@ -63,7 +112,9 @@ class AuthProvider: BaseProvider() {
             REFRESH_SMARTTHINGS_TOKEN,
             GET_FIND_TOKEN,
             REFRESH_FIND_TOKEN,
-            CLEAR_CREDENTIALS;
+            CLEAR_CREDENTIALS,
+            GET_SMARTTHINGS_CREDENTIALS,
+            GET_FIND_CREDENTIALS;
 
             companion object {
                 fun get(method: String): Method? {
@@ -99,8 +150,35 @@ class AuthProvider: BaseProvider() {
                 authRepository.clearCredentials()
                 bundleOf(KEY_RESULT to true)
             }
+            Method.GET_SMARTTHINGS_CREDENTIALS -> {
+                bundleOf(
+                    KEY_TOKEN to authRepository.getSmartThingsAuthToken(),
+                    KEY_EXPIRY_TIME to authRepository.getSmartThingsAuthTokenExpiry(),
+                    KEY_USER_ID to authRepository.getUserId(),
+                    KEY_AUTH_SERVER_URL to authRepository.getAuthServerUrl()
+                )
+            }
+            Method.GET_FIND_CREDENTIALS -> {
+                bundleOf(
+                    KEY_TOKEN to authRepository.getFindAuthToken(),
+                    KEY_EXPIRY_TIME to authRepository.getFindAuthTokenExpiry(),
+                    KEY_USER_ID to authRepository.getUserId(),
+                    KEY_AUTH_SERVER_URL to authRepository.getAuthServerUrl()
+                )
+            }
             null -> null
         }
     }
+
+    /**
+     *  A token and the details sent alongside it, which are cached by
+     *  [com.kieronquinn.app.utag.networking.interceptors.AuthTokenCache]. [expiryTime] is 0 if unknown.
+     */
+    data class Credentials(
+        val token: String,
+        val expiryTime: Long,
+        val userId: String?,
+        val authServerUrl: String?
+    )
     
 }
\ No newline at end of file
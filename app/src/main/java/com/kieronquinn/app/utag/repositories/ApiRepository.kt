@@ -34,12 +34,19 @@ import com.kieronquinn.app.utag.networking.services.InstalledAppsService.Compani
 import com.kieronquinn.app.utag.networking.services.InstalledAppsService.Companion.send
 import com.kieronquinn.app.utag.repositories.ApiRepository.GetLocationHistoryResult
 import com.kieronquinn.app.utag.repositories.ApiRepository.GetLocationResult
+import com.kieronquinn.app.utag.repositories.ApiRepository.LocationHistorySession
 import com.kieronquinn.app.utag.repositories.EncryptionRepository.DecryptionResult
 import com.kieronquinn.app.utag.utils.extensions.Locale_getDefaultWithCountry
 import com.kieronquinn.app.utag.utils.extensions.get
 import com.kieronquinn.app.utag.utils.extensions.iso3Toiso2Country
+import kotlinx.coroutines.async
+import kotlinx.coroutines.awaitAll
+import kotlinx.coroutines.coroutineScope
+import kotlinx.coroutines.sync.Mutex
+import kotlinx.coroutines.sync.withLock
 import retrofit2.Retrofit
 import java.io.IOException
+import javax.crypto.Cipher
 
 interface ApiRepository {
 
@@ -87,17 +94,31 @@ interface ApiRepository {
      */
     suspend fun getLocation(deviceId: String): GetLocationResult
 
+    /**
+     *  Gets the last known locations of multiple Tags from the server, mapped from device ID to
+     *  owner ID. Tags are requested in a single request per owner, and decrypted with that
+     *  owner's key pair. Each Tag's response is also written to the cache, the same as
+     *  [getLocation]. If a request fails, each of its Tags falls back to [getLocation].
+     */
+    suspend fun getLocations(deviceOwners: Map<String, String>): Map<String, GetLocationResult>
+
     /**
      *  Updates the location of this Tag to the server
      */
     suspend fun sendLocation(deviceId: String, request: SendLocationRequest): Boolean
 
     /**
-     *  Retrieves location history for this Tag from [startTime] to [endTime], with a [limit] of
-     *  results. Max limit is 500.
+     *  Loads the KeyPair for this Tag and derives its decryption cipher, so it can be reused for
+     *  every page of [getLocationHistory] in a single history load.
+     */
+    suspend fun createLocationHistorySession(deviceId: String): LocationHistorySession
+
+    /**
+     *  Retrieves location history for the [session]'s Tag from [startTime] to [endTime], with a
+     *  [limit] of results. Max limit is 500. Can be called concurrently for the same session.
      */
     suspend fun getLocationHistory(
-        deviceId: String,
+        session: LocationHistorySession,
         startTime: Long,
         endTime: Long,
         limit: Int = 500,
@@ -190,6 +211,17 @@ interface ApiRepository {
         ): GetLocationResult(cached)
     }
 
+    class LocationHistorySession(
+        val deviceId: String,
+        val cipher: Cipher?,
+        val hasKeyPair: Boolean
+    ) {
+        /**
+         *  The cipher is not thread safe, so decryption with it is done one page at a time
+         */
+        val decryptionLock = Mutex()
+    }
+
     sealed class GetLocationHistoryResult {
         data class Locations(
             val locations: List<GeoLocation>,
@@ -204,6 +236,7 @@ class ApiRepositoryImpl(
     private val encryptedSettingsRepository: EncryptedSettingsRepository,
     private val encryptionRepository: EncryptionRepository,
     private val userRepository: UserRepository,
+    private val cacheRepository: CacheRepository,
     private val gson: Gson,
     context: Context,
     retrofit: Retrofit
@@ -294,32 +327,86 @@ class ApiRepositoryImpl(
             subType = deviceId,
             convert = { copy(cached = true) }
         ) ?: return GetLocationResult.Error(1401, false)
-        val item = locationResponse.items.firstOrNull { it.deviceId == deviceId }
-            ?: return GetLocationResult.Error(1404, false)
-        if(item.resultCode == 403) return GetLocationResult.NotAllowed(locationResponse.wasFromCache())
-        val location = item.geoLocations.firstOrNull()
-            ?: return GetLocationResult.NoLocation(locationResponse.wasFromCache())
-        val keyPair = locationResponse.keyPairs.firstOrNull()
-        val hasKeyPair = keyPair != null
-        val cipher = keyPair?.let {
+        val cipher = locationResponse.getDecryptionCipher()
+        return locationResponse.toLocationResult(deviceId, cipher)
+    }
+
+    override suspend fun getLocations(
+        deviceOwners: Map<String, String>
+    ): Map<String, GetLocationResult> = coroutineScope {
+        deviceOwners.entries.groupBy({ it.value }, { it.key }).map { (ownerId, ids) ->
+            async { getLocations(ownerId, ids) }
+        }.awaitAll().fold(emptyMap()) { results, ownerResults -> results + ownerResults }
+    }
+
+    private suspend fun getLocations(
+        ownerId: String,
+        ids: List<String>
+    ): Map<String, GetLocationResult> {
+        if(ids.size <= 1) {
+            return ids.associateWith { getLocation(it) }
+        }
+        val locationResponse = installedAppsService.get<GeoLocationResponse>(
+            Method.GET,
+            uri = "/trackers/geolocation",
+            extraParameters = mapOf("stDids" to ids.joinToString(","))
+        ) ?: return getLocationsIndividually(ids)
+        //If the owner's key pair can't be found, let each Tag's own request pick the right one
+        val keyPair = locationResponse.keyPairs.firstOrNull { it.userId == ownerId }
+            ?: locationResponse.keyPairs.singleOrNull()
+        if(keyPair == null && locationResponse.keyPairs.isNotEmpty()) {
+            return getLocationsIndividually(ids)
+        }
+        val ownerResponse = locationResponse.copy(keyPairs = listOfNotNull(keyPair))
+        //Cache each Tag separately, so single requests can still fall back to it
+        ids.forEach { deviceId ->
+            val item = ownerResponse.items.filter { it.deviceId == deviceId }
+            if(item.isNotEmpty()) {
+                cacheRepository.setCache(
+                    CacheType.TAG_LOCATION, deviceId, ownerResponse.copy(items = item)
+                )
+            }
+        }
+        val cipher = ownerResponse.getDecryptionCipher()
+        return ids.associateWith { ownerResponse.toLocationResult(it, cipher) }
+    }
+
+    private suspend fun getLocationsIndividually(
+        ids: List<String>
+    ): Map<String, GetLocationResult> = coroutineScope {
+        ids.map { async { it to getLocation(it) } }.awaitAll().toMap()
+    }
+
+    private suspend fun GeoLocationResponse.getDecryptionCipher(): Cipher? {
+        return keyPairs.firstOrNull()?.let {
             val pin = encryptionRepository.getPin()
             encryptionRepository.getDecryptionCipher(pin, it)
         }
+    }
+
+    private suspend fun GeoLocationResponse.toLocationResult(
+        deviceId: String,
+        cipher: Cipher?
+    ): GetLocationResult {
+        val item = items.firstOrNull { it.deviceId == deviceId }
+            ?: return GetLocationResult.Error(1404, false)
+        if(item.resultCode == 403) return GetLocationResult.NotAllowed(wasFromCache())
+        val location = item.geoLocations.firstOrNull()
+            ?: return GetLocationResult.NoLocation(wasFromCache())
+        val hasKeyPair = keyPairs.isNotEmpty()
         val decrypted = encryptionRepository.decryptLocationIfNeeded(location, cipher, hasKeyPair)
         return when(decrypted) {
             is DecryptionResult.Success -> {
-                GetLocationResult.Location(
-                    decrypted.location, keyPair != null, locationResponse.wasFromCache()
-                )
+                GetLocationResult.Location(decrypted.location, hasKeyPair, wasFromCache())
             }
             is DecryptionResult.PINRequired -> {
-                GetLocationResult.PINRequired(location.lastUpdateTime, locationResponse.wasFromCache())
+                GetLocationResult.PINRequired(location.lastUpdateTime, wasFromCache())
             }
             is DecryptionResult.NoKeys -> {
-                GetLocationResult.NoKeys(location.lastUpdateTime, locationResponse.wasFromCache())
+                GetLocationResult.NoKeys(location.lastUpdateTime, wasFromCache())
             }
             is DecryptionResult.Error -> {
-                GetLocationResult.Error(1403, locationResponse.wasFromCache())
+                GetLocationResult.Error(1403, wasFromCache())
             }
         }
     }
@@ -333,41 +420,52 @@ class ApiRepositoryImpl(
         ) != null
     }
 
-    override suspend fun getLocationHistory(
-        deviceId: String,
-        startTime: Long,
-        endTime: Long,
-        limit: Int,
-        onProgressChanged: suspend (Float) -> Unit
-    ): GetLocationHistoryResult {
+    override suspend fun createLocationHistorySession(
+        deviceId: String
+    ): LocationHistorySession {
         //Get the current location to retrieve the KeyPair if required
         val keyPair = installedAppsService.get<GeoLocationResponse>(
             Method.GET,
             uri = "/trackers/geolocation",
             extraParameters = mapOf("stDids" to deviceId)
         )?.keyPairs?.firstOrNull()
+        val cipher = keyPair?.let {
+            val pin = encryptionRepository.getPin()
+            encryptionRepository.getDecryptionCipher(pin, it)
+        }
+        return LocationHistorySession(deviceId, cipher, keyPair != null)
+    }
+
+    override suspend fun getLocationHistory(
+        session: LocationHistorySession,
+        startTime: Long,
+        endTime: Long,
+        limit: Int,
+        onProgressChanged: suspend (Float) -> Unit
+    ): GetLocationHistoryResult {
+        val deviceId = session.deviceId
         val locations = installedAppsService.get<GetLocationResponse>(
             Method.GET,
             uri = URI_TRACKER_API,
             extraUri = "/trackers/$deviceId/geolocations?order=asc&isSummary=false&startTime=$startTime&endTime=$endTime&limit=$limit"
         ) ?: return GetLocationHistoryResult.Error
         var requiresPin = false
-        val hasKeyPair = keyPair != null
-        val cipher = keyPair?.let {
-            val pin = encryptionRepository.getPin()
-            encryptionRepository.getDecryptionCipher(pin, it)
-        }
         val size = locations.geoLocations.size
-        val decryptedLocations = locations.geoLocations.mapIndexedNotNull { index, it ->
-            val progress = index / size.toFloat()
-            onProgressChanged(progress)
-            when(val decrypted = encryptionRepository.decryptLocationIfNeeded(it, cipher, hasKeyPair)) {
-                is DecryptionResult.Success -> decrypted.location
-                is DecryptionResult.PINRequired, is DecryptionResult.NoKeys -> {
-                    requiresPin = true
-                    null
+        val decryptedLocations = session.decryptionLock.withLock {
+            locations.geoLocations.mapIndexedNotNull { index, it ->
+                val progress = index / size.toFloat()
+                onProgressChanged(progress)
+                val decrypted = encryptionRepository.decryptLocationIfNeeded(
+                    it, session.cipher, session.hasKeyPair
+                )
+                when(decrypted) {
+                    is DecryptionResult.Success -> decrypted.location
+                    is DecryptionResult.PINRequired, is DecryptionResult.NoKeys -> {
+                        requiresPin = true
+                        null
+                    }
+                    is DecryptionResult.Error -> return GetLocationHistoryResult.Error
                 }
-                is DecryptionResult.Error -> return GetLocationHistoryResult.Error
             }
         }
         return GetLocationHistoryResult.Locations(decryptedLocations, requiresPin)
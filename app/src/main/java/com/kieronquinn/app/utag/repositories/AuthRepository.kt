@@ -1,8 +1,10 @@
 package com.kieronquinn.app.utag.repositories
 
+import android.content.Context
 import com.kieronquinn.app.utag.Application.Companion.CLIENT_ID_FIND
 import com.kieronquinn.app.utag.Application.Companion.CLIENT_ID_ONECONNECT
 import com.kieronquinn.app.utag.model.database.cache.CacheItem
+import com.kieronquinn.app.utag.networking.model.auth.TokenResponse
 import com.kieronquinn.app.utag.networking.model.smartthings.ConsentDetails
 import com.kieronquinn.app.utag.networking.services.AuthService
 import com.kieronquinn.app.utag.networking.services.AuthService.Companion.authenticate
@@ -10,6 +12,7 @@ import com.kieronquinn.app.utag.networking.services.AuthService.Companion.author
 import com.kieronquinn.app.utag.networking.services.AuthService.Companion.token
 import com.kieronquinn.app.utag.networking.services.EntryPointService
 import com.kieronquinn.app.utag.networking.services.SamsungConsentService
+import com.kieronquinn.app.utag.providers.AuthProvider
 import com.kieronquinn.app.utag.utils.SignInUtils
 import com.kieronquinn.app.utag.utils.extensions.firstNotNull
 import com.kieronquinn.app.utag.utils.extensions.get
@@ -20,6 +23,8 @@ import kotlinx.coroutines.flow.MutableStateFlow
 import kotlinx.coroutines.flow.SharingStarted
 import kotlinx.coroutines.flow.StateFlow
 import kotlinx.coroutines.flow.combine
+import kotlinx.coroutines.flow.drop
+import kotlinx.coroutines.flow.filterNot
 import kotlinx.coroutines.flow.stateIn
 import kotlinx.coroutines.launch
 import kotlinx.coroutines.runBlocking
@@ -72,6 +77,16 @@ interface AuthRepository {
      */
     fun getFindAuthToken(): String?
 
+    /**
+     *  BLOCKING CALL, only to be used in interceptor. Returns 0 if the expiry time is unknown.
+     */
+    fun getSmartThingsAuthTokenExpiry(): Long
+
+    /**
+     *  BLOCKING CALL, only to be used in interceptor. Returns 0 if the expiry time is unknown.
+     */
+    fun getFindAuthTokenExpiry(): Long
+
     /**
      *  BLOCKING CALL, only to be used in interceptor
      */
@@ -96,15 +111,24 @@ interface AuthRepository {
 }
 
 class AuthRepositoryImpl(
+    private val context: Context,
     private val cacheRepository: CacheRepository,
     private val smartTagRepository: SmartTagRepository,
     private val encryptedStorage: EncryptedSettingsRepository,
     private val storage: SettingsRepository,
     private val widgetRepository: WidgetRepository,
     private val historyWidgetRepository: HistoryWidgetRepository,
+    private val locationHistoryRepository: LocationHistoryRepository,
     retrofit: Retrofit
 ): AuthRepository {
 
+    companion object {
+        /**
+         *  Tokens are documented to last 24 hours, this is used if the response doesn't say
+         */
+        private const val DEFAULT_TOKEN_LIFETIME = 24 * 60 * 60 * 1000L
+    }
+
     private val scope = MainScope()
     private val state = secureRandom(20)
     private val codeVerifier = secureRandom(43)
@@ -203,6 +227,14 @@ class AuthRepositoryImpl(
         }
     }
 
+    override fun getSmartThingsAuthTokenExpiry(): Long {
+        return encryptedStorage.iotTokenExpiry.getSync()
+    }
+
+    override fun getFindAuthTokenExpiry(): Long {
+        return encryptedStorage.offlineAccessTokenExpiry.getSync()
+    }
+
     override fun getAuthServerUrl(): String? {
         return runBlocking {
             authServerUrl.firstNotNull().takeIf { it.isNotBlank() }
@@ -219,8 +251,10 @@ class AuthRepositoryImpl(
         scope.launch {
             encryptedStorage.userAuthToken.clear()
             encryptedStorage.iotToken.clear()
+            encryptedStorage.iotTokenExpiry.clear()
             encryptedStorage.iotRefreshToken.clear()
             encryptedStorage.offlineAccessToken.clear()
+            encryptedStorage.offlineAccessTokenExpiry.clear()
             encryptedStorage.offlineAccessRefreshToken.clear()
             encryptedStorage.authServerUrl.clear()
             encryptedStorage.userId.clear()
@@ -235,6 +269,8 @@ class AuthRepositoryImpl(
             historyWidgetRepository.updateWidgets()
             //Clear cache
             cacheRepository.clearCache()
+            //Clear stored location history
+            locationHistoryRepository.clearLocalHistory()
         }
     }
 
@@ -262,8 +298,7 @@ class AuthRepositoryImpl(
                 val response = authService.token(authServerUrl, CLIENT_ID_ONECONNECT, refreshToken)
                     .get(name = "iotToken") ?: return@runBlocking getSmartThingsToken()
                 //If refreshing fails, try using the user auth token instead
-                encryptedStorage.iotRefreshToken.set(response.refreshToken)
-                encryptedStorage.iotToken.set(response.accessToken)
+                setSmartThingsToken(response)
                 true
             }
         }
@@ -287,8 +322,7 @@ class AuthRepositoryImpl(
                 val response = authService.token(authServerUrl, CLIENT_ID_FIND, refreshToken)
                     .get(name = "findToken") ?: return@runBlocking getFindToken()
                 //If refreshing fails, try using the user auth token instead
-                encryptedStorage.offlineAccessRefreshToken.set(response.refreshToken)
-                encryptedStorage.offlineAccessToken.set(response.accessToken)
+                setFindToken(response)
                 true
             }
         }
@@ -333,8 +367,7 @@ class AuthRepositoryImpl(
             codeVerifier = codeVerifier,
             physicalAddressText = physicalAddressText
         ).get(name = "iotAuth") ?: return false
-        encryptedStorage.iotRefreshToken.set(authResponse.refreshToken)
-        encryptedStorage.iotToken.set(authResponse.accessToken)
+        setSmartThingsToken(authResponse)
         return true
     }
 
@@ -377,11 +410,41 @@ class AuthRepositoryImpl(
             codeVerifier = codeVerifier,
             physicalAddressText = physicalAddressText
         ).get(name = "findAuth") ?: return false
-        encryptedStorage.offlineAccessRefreshToken.set(authResponse.refreshToken)
-        encryptedStorage.offlineAccessToken.set(authResponse.accessToken)
+        setFindToken(authResponse)
         return true
     }
 
+    private suspend fun setSmartThingsToken(response: TokenResponse) {
+        encryptedStorage.iotRefreshToken.set(response.refreshToken)
+        encryptedStorage.iotToken.set(response.accessToken)
+        encryptedStorage.iotTokenExpiry.set(response.getExpiryTime())
+    }
+
+    private suspend fun setFindToken(response: TokenResponse) {
+        encryptedStorage.offlineAccessRefreshToken.set(response.refreshToken)
+        encryptedStorage.offlineAccessToken.set(response.accessToken)
+        encryptedStorage.offlineAccessTokenExpiry.set(response.getExpiryTime())
+    }
+
+    private fun TokenResponse.getExpiryTime(): Long {
+        val lifetime = expiresIn?.let { it * 1000L } ?: DEFAULT_TOKEN_LIFETIME
+        return System.currentTimeMillis() + lifetime
+    }
+
+    /**
+     *  Lets the token caches in each process know that the credentials have changed, so they are
+     *  reloaded on the next request
+     */
+    private fun setupCredentialsChangeNotifier() = scope.launch {
+        combine(
+            smartThingsToken, findToken, userId, authServerUrl
+        ) { smartThingsToken, findToken, userId, authServerUrl ->
+            listOf(smartThingsToken, findToken, userId, authServerUrl)
+        }.filterNot { it.contains(null) }.drop(1).collect {
+            AuthProvider.notifyChange(context)
+        }
+    }
+
     /**
      *  SmartThings uses the Android ID, which since Android 8.0 has been a random hex string based
      *  on the app's signing key, device and user info. This is fine for it, and would be fine for
@@ -403,4 +466,8 @@ class AuthRepositoryImpl(
         }
     }
 
+    init {
+        setupCredentialsChangeNotifier()
+    }
+
 }
\ No newline at end of file
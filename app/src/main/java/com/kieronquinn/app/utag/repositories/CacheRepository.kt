@@ -1,15 +1,17 @@
 package com.kieronquinn.app.utag.repositories
 
-import android.util.Log
+import android.os.SystemClock
+import android.util.LruCache
+import androidx.room.InvalidationTracker
 import com.google.gson.Gson
 import com.google.gson.reflect.TypeToken
-import com.kieronquinn.app.utag.BuildConfig
 import com.kieronquinn.app.utag.model.database.cache.CacheDatabase
+import com.kieronquinn.app.utag.model.database.cache.CacheDatabase.Companion.TABLE_CACHE_ITEM
 import com.kieronquinn.app.utag.model.database.cache.CacheItem
 import com.kieronquinn.app.utag.model.database.cache.CacheItem.CacheType
 import com.kieronquinn.app.utag.model.database.cache.CacheItemTable
+import com.kieronquinn.app.utag.utils.CacheValidator
 import com.kieronquinn.app.utag.utils.extensions.toEncryptedValue
-import com.kieronquinn.app.utag.utils.extensions.toEnumOrNull
 import com.kieronquinn.app.utag.utils.room.RoomEncryptionHelper
 import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.MainScope
@@ -18,9 +20,7 @@ import kotlinx.coroutines.sync.Mutex
 import kotlinx.coroutines.sync.withLock
 import kotlinx.coroutines.withContext
 import java.lang.reflect.Type
-import kotlin.reflect.KClass
-import kotlin.reflect.KVisibility
-import kotlin.reflect.full.memberProperties
+import java.time.Duration
 
 /**
  *  Handles cache storage of encrypted Tag data. Database is stored in cache folder in internal
@@ -48,21 +48,49 @@ interface CacheRepository: RoomEncryptionHelper.RoomEncryptionFailedCallback {
 
 class CacheRepositoryImpl(
     private val gson: Gson,
-    cacheDatabase: CacheDatabase
+    cacheDatabase: CacheDatabase,
+    private val encryptedSettingsRepository: EncryptedSettingsRepository
 ): CacheRepository {
 
+    companion object {
+        /**
+         *  Approximate maximum size of the in-memory cache, based on the length of each item's
+         *  JSON. Items are evicted least recently used first once this is exceeded.
+         */
+        private const val MEMORY_CACHE_SIZE = 1024 * 1024 // 1 MB
+    }
+
     private val table = cacheDatabase.cacheItemTable()
     private val tableLock = Mutex()
     private val scope = MainScope()
+    private val memoryCache = MemoryCache()
+
+    /**
+     *  Clears the memory cache whenever the table changes. The tracker doesn't say which process
+     *  made the change, and may merge several changes into one call, so this also runs for local
+     *  writes. Those are rare compared to reads, so re-reading from the database is cheap.
+     */
+    private val invalidationObserver = object: InvalidationTracker.Observer(TABLE_CACHE_ITEM) {
+        override fun onInvalidated(tables: Set<String>) {
+            memoryCache.evictAll()
+        }
+    }
+
+    init {
+        cacheDatabase.invalidationTracker.addObserver(invalidationObserver)
+    }
 
     override suspend fun <T> getCache(type: CacheType, subType: String?, typeToken: Type): T? {
+        memoryCache.get<T>(type, subType, typeToken)?.let { return it }
         return tableLock.withLock {
-            val item = table.getItem(type, subType)?.data?.let {
+            val item = table.getItem(getLookupKey(type, subType))?.data?.let {
                 String(it.bytes)
             }
             if(item == null) return null
             try {
-                gson.fromJson<T>(item, typeToken)?.takeIf { it.isValid() }
+                gson.fromJson<T>(item, typeToken)?.takeIf { it.isValid() }?.also {
+                    memoryCache.put(type, subType, typeToken, it, item.length)
+                }
             } catch (e: Exception) {
                 //If the cache is invalid (for example if the model has changed),
                 null
@@ -73,25 +101,24 @@ class CacheRepositoryImpl(
 
     override suspend fun <T> setCache(type: CacheType, subType: String?, data: T) {
         tableLock.withLock {
-            val currentItem = table.getItem(type, subType)
-            if(currentItem != null) {
-                withContext(Dispatchers.IO) {
-                    table.delete(currentItem)
-                }
-            }
+            val json = gson.toJson(data)
             val newItem = CacheItem(
+                lookupKey = getLookupKey(type, subType),
                 type = type.toEncryptedValue(),
                 subType = subType?.toEncryptedValue(),
-                data = gson.toJson(data).toEncryptedValue()
+                data = json.toEncryptedValue()
             )
             withContext(Dispatchers.IO) {
                 table.insert(newItem)
             }
+            //Only validated reads fill the memory cache, so the next read reloads this item
+            memoryCache.remove(type, subType)
         }
     }
 
     override suspend fun clearCache() {
         tableLock.withLock {
+            memoryCache.evictAll()
             withContext(Dispatchers.IO) {
                 table.clear()
             }
@@ -104,13 +131,16 @@ class CacheRepositoryImpl(
         }
     }
 
-    private suspend fun CacheItemTable.getItem(type: CacheType, subType: String?): CacheItem? {
+    private fun getLookupKey(type: CacheType, subType: String?): String {
+        return CacheItem.createLookupKey(
+            encryptedSettingsRepository.getDatabaseLookupKey(), type, subType
+        )
+    }
+
+    private suspend fun CacheItemTable.getItem(lookupKey: String): CacheItem? {
         return try {
             withContext(Dispatchers.IO) {
-                get().firstOrNull {
-                    it.type.toEnumOrNull<CacheType>() == type &&
-                            (subType == null || it.subType?.let { type -> String(type.bytes) } == subType)
-                }
+                get(lookupKey)
             }
         }catch (e: IllegalStateException) {
             //Cache has become corrupt, clear and start again
@@ -121,25 +151,75 @@ class CacheRepositoryImpl(
         }
     }
 
+    private fun Any.isValid(): Boolean {
+        return CacheValidator.isValid(this)
+    }
+
     /**
-     *  Recursively checks data class fields for this object, making sure any fields that are marked
-     *  as not-null are not null. This ensures that the deserialised JSON object is not stale, and
-     *  won't cause null pointer issues elsewhere in the app.
+     *  How long an item can be served from memory before it must be re-read from the database.
+     *  Items which change frequently have a shorter time, so other processes' writes are picked
+     *  up even if an invalidation is missed.
      */
-    private fun Any.isValid(): Boolean {
-        this::class.memberProperties.filter { it.visibility == KVisibility.PUBLIC }.forEach {
-            if(!it.returnType.isMarkedNullable && it.getter.call(this) == null) {
-                if(BuildConfig.DEBUG) {
-                    Log.e("uCache", "Field ${it.name} is not marked nullable but is null!")
-                }
-                return false
+    private val CacheType.memoryTtl
+        get() = when(this) {
+            CacheType.TAG_LOCATION, CacheType.LOST_MODE -> Duration.ofSeconds(30)
+            CacheType.DEVICES, CacheType.FMM_DEVICES, CacheType.DEVICE_INFO -> Duration.ofMinutes(2)
+            CacheType.USER_INFO, CacheType.USER_OPTIONS, CacheType.CONSENT_DETAILS,
+            CacheType.RULES, CacheType.ENCRYPTION_KEY -> Duration.ofMinutes(5)
+            CacheType.CURRENT_INSTALLED_APP_ID, CacheType.IMAGE_REDIRECT -> Duration.ofMinutes(30)
+        }
+
+    /**
+     *  Per-process cache of deserialised and validated items, which sits in front of the database.
+     *  Items are only added by [getCache], and are stored with the type token they were loaded
+     *  with, so a request for the same key with a different type will fall through to the
+     *  database.
+     */
+    private inner class MemoryCache {
+
+        private val cache = object: LruCache<MemoryKey, MemoryItem>(MEMORY_CACHE_SIZE) {
+            override fun sizeOf(key: MemoryKey, value: MemoryItem): Int {
+                return value.size
             }
-            if((it.returnType.classifier as? KClass<*>)?.isData == true &&
-                it.getter.call(this)?.isValid() == false) {
-                return false
+        }
+
+        @Suppress("UNCHECKED_CAST")
+        fun <T> get(type: CacheType, subType: String?, typeToken: Type): T? {
+            val key = MemoryKey(type, subType)
+            val item = cache.get(key) ?: return null
+            if(item.expiresAt < SystemClock.elapsedRealtime()) {
+                cache.remove(key)
+                return null
             }
+            if(item.typeToken != typeToken) return null
+            return item.value as? T
         }
-        return true
+
+        fun put(type: CacheType, subType: String?, typeToken: Type, value: Any, size: Int) {
+            val expiresAt = SystemClock.elapsedRealtime() + type.memoryTtl.toMillis()
+            cache.put(
+                MemoryKey(type, subType),
+                MemoryItem(value, typeToken, size.coerceAtLeast(1), expiresAt)
+            )
+        }
+
+        fun remove(type: CacheType, subType: String?) {
+            cache.remove(MemoryKey(type, subType))
+        }
+
+        fun evictAll() {
+            cache.evictAll()
+        }
+
     }
 
-}
\ No newline at end of file
+    private data class MemoryKey(val type: CacheType, val subType: String?)
+
+    private data class MemoryItem(
+        val value: Any,
+        val typeToken: Type,
+        val size: Int,
+        val expiresAt: Long
+    )
+
+}
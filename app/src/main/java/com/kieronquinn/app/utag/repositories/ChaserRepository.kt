@@ -6,9 +6,12 @@ import android.location.Location
 import android.provider.Settings
 import android.security.keystore.KeyGenParameterSpec
 import android.util.Base64
+import android.util.LruCache
 import com.google.gson.Gson
 import com.google.gson.annotations.SerializedName
 import com.kieronquinn.app.utag.model.ChaserRegion
+import com.kieronquinn.app.utag.model.database.ChaserQueueItem
+import com.kieronquinn.app.utag.model.database.UTagDatabase
 import com.kieronquinn.app.utag.networking.model.chaser.ChaserAccessTokenResponse
 import com.kieronquinn.app.utag.networking.model.chaser.ChaserLocationsRequest
 import com.kieronquinn.app.utag.networking.model.chaser.ChaserLocationsRequest.ChaserTag
@@ -25,17 +28,28 @@ import com.kieronquinn.app.utag.networking.services.ChaserService.Companion.send
 import com.kieronquinn.app.utag.repositories.ChaserRepository.ChaserCertificate
 import com.kieronquinn.app.utag.repositories.ChaserRepository.RawCertificate
 import com.kieronquinn.app.utag.repositories.NonOwnerTagRepository.NonOwnerTag
+import com.kieronquinn.app.utag.repositories.SmartTagRepository.TagData
 import com.kieronquinn.app.utag.utils.chaser.FmmContext
 import com.kieronquinn.app.utag.utils.extensions.get
+import com.kieronquinn.app.utag.utils.extensions.toEncryptedValue
+import com.kieronquinn.app.utag.utils.room.RoomEncryptionHelper.RoomEncryptionFailedCallback
 import com.samsung.android.fmm.maze.FmmFontJNI
+import kotlinx.coroutines.Deferred
 import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.Job
 import kotlinx.coroutines.MainScope
+import kotlinx.coroutines.async
+import kotlinx.coroutines.currentCoroutineContext
+import kotlinx.coroutines.delay
 import kotlinx.coroutines.flow.SharingStarted
 import kotlinx.coroutines.flow.StateFlow
 import kotlinx.coroutines.flow.flow
 import kotlinx.coroutines.flow.flowOn
 import kotlinx.coroutines.flow.mapLatest
 import kotlinx.coroutines.flow.stateIn
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.sync.Mutex
+import kotlinx.coroutines.sync.withLock
 import kotlinx.coroutines.withContext
 import org.bouncycastle.jce.provider.BouncyCastleProvider
 import org.bouncycastle.util.encoders.Hex
@@ -64,8 +78,9 @@ interface ChaserRepository {
     val certificate: StateFlow<ChaserCertificate?>
 
     /**
-     *  Tries to send a [NonOwnerTag]'s [Location] to the chaser server, if the user has it set up
-     *  correctly.
+     *  Queues a [NonOwnerTag]'s [Location] to be sent to the chaser server, if the user has it set
+     *  up correctly. Queued locations are sent together once enough have been collected or the
+     *  oldest has waited long enough.
      */
     suspend fun sendLocations(tags: List<NonOwnerTag>, location: Location)
 
@@ -101,14 +116,31 @@ class ChaserRepositoryImpl(
     private val gson: Gson,
     private val settingsRepository: SettingsRepository,
     encryptedSettingsRepository: EncryptedSettingsRepository,
-    retrofit: Retrofit
-): ChaserRepository {
+    retrofit: Retrofit,
+    database: UTagDatabase
+): ChaserRepository, RoomEncryptionFailedCallback {
 
     companion object {
         private const val FMM_VERSION = 731802100L
         private const val POLICY_VERSION = "4"
         private const val KEYSTORE_ANDROID = "AndroidKeyStore"
         private const val KEYSTORE_CHASER = "ChaserKeyStore"
+        //Access tokens are refreshed in the background once they are this close to expiring
+        private const val ACCESS_TOKEN_REFRESH_MARGIN = 5 * 60_000L
+        //Used if the server doesn't provide a usable expiry time
+        private const val ACCESS_TOKEN_DEFAULT_LIFETIME = 30 * 60_000L
+        //How long a Tag's public key is used before it is requested again
+        private const val PUBLIC_KEY_CACHE_DURATION = 6 * 60 * 60_000L
+        private const val PUBLIC_KEY_CACHE_SIZE = 256
+        //Queued locations are sent once this many are waiting, or the oldest is this old
+        private const val QUEUE_BATCH_SIZE = 50
+        private const val QUEUE_FLUSH_INTERVAL = 5 * 60_000L
+        //Queued locations older than this are dropped if they fail to send. The queue is only
+        //flushed when locations are sent, so this is well over the longest (stretched) refresh
+        private const val QUEUE_MAX_AGE = 6 * 60 * 60_000L
+        //Retry delays when sending queued locations fails
+        private const val QUEUE_RETRY_DELAY_MIN = 60_000L
+        private const val QUEUE_RETRY_DELAY_MAX = 30 * 60_000L
     }
 
     private val scope = MainScope()
@@ -116,6 +148,22 @@ class ChaserRepositoryImpl(
     private val authenticatedChaserService = AuthenticatedChaserService.createService(context, retrofit)
     private val chaserCount = encryptedSettingsRepository.chaserCount
     private val fmmContext = FmmContext(context)
+    private val accessTokens = AccessTokenManager()
+    private val chaserQueueItemTable = database.chaserQueueItemTable()
+    private val queueLock = Mutex()
+    private val bouncyCastleProvider by lazy { BouncyCastleProvider() }
+    private val publicKeyCache = LruCache<String, CachedCipher>(PUBLIC_KEY_CACHE_SIZE)
+    //Retry delays for regions which have failed to send, only accessed holding queueLock
+    private val queueRetries = HashMap<String, QueueRetry>()
+
+    private val androidKeyStore by lazy {
+        KeyStore.getInstance(KEYSTORE_ANDROID).apply {
+            load(null)
+        }
+    }
+
+    @Volatile
+    private var publicKey: String? = null
 
     private val rawCertificate = flow {
         val cert = try {
@@ -136,10 +184,37 @@ class ChaserRepositoryImpl(
     }.flowOn(Dispatchers.IO).stateIn(scope, SharingStarted.Eagerly, null)
 
     override suspend fun sendLocations(tags: List<NonOwnerTag>, location: Location) {
-        val certificate = certificate.value as? ChaserCertificate.Certificate ?: return
-        val disconnectedTags = tags.filter { it.tagData.tagState.shouldSendToChaser() }
-        disconnectedTags.groupBy { it.tagData.region }.forEach { (region, tags) ->
-            sendLocations(tags, certificate, region ?: return@forEach, location)
+        if(certificate.value !is ChaserCertificate.Certificate) return
+        val items = tags.filter { it.tagData.tagState.shouldSendToChaser() }.mapNotNull { tag ->
+            val region = tag.tagData.region ?: return@mapNotNull null
+            val detection = ChaserQueueItem.Detection(
+                serviceData = tag.tagData.encodedServiceData,
+                rssi = tag.rssi,
+                receivedTime = tag.lastReceivedTime,
+                latitude = location.latitude,
+                longitude = location.longitude,
+                accuracy = location.accuracy,
+                speed = location.speed,
+                provider = location.provider
+            )
+            ChaserQueueItem(
+                region = region.name,
+                timestamp = tag.lastReceivedTime,
+                detection = gson.toJson(detection).toEncryptedValue()
+            )
+        }
+        if(items.isNotEmpty()) {
+            withContext(Dispatchers.IO) {
+                chaserQueueItemTable.insert(items)
+            }
+        }
+        flushQueue()
+    }
+
+    override fun onEncryptionFailed() {
+        scope.launch(Dispatchers.IO) {
+            //Queued locations will no longer decrypt, so remove them
+            chaserQueueItemTable.clear()
         }
     }
 
@@ -161,57 +236,145 @@ class ChaserRepositoryImpl(
         }
     }
 
-    private suspend fun sendLocations(
-        nonOwnerTags: List<NonOwnerTag>,
+    /**
+     *  Sends queued locations, grouped by region, if enough are waiting or the oldest has waited
+     *  for [QUEUE_FLUSH_INTERVAL], or if [force] is set. If sending to a region fails, its
+     *  remaining locations are kept and sending is tried again later, backing off each time it
+     *  fails. Other regions are not affected. Locations are only dropped for being older than
+     *  [QUEUE_MAX_AGE] after failing to send, so they are always tried at least once.
+     */
+    private suspend fun flushQueue(force: Boolean = false) = queueLock.withLock {
+        val now = System.currentTimeMillis()
+        val certificate = certificate.value as? ChaserCertificate.Certificate ?: return@withLock
+        val items = withContext(Dispatchers.IO) {
+            val oldest = chaserQueueItemTable.getOldestTimestamp() ?: return@withContext null
+            val isDue = chaserQueueItemTable.getCount() >= QUEUE_BATCH_SIZE ||
+                    now - oldest >= QUEUE_FLUSH_INTERVAL
+            if(!force && !isDue) return@withContext null
+            chaserQueueItemTable.getItems()
+        } ?: return@withLock
+        items.groupBy { it.region }.forEach { (regionName, regionItems) ->
+            if(now < (queueRetries[regionName]?.time ?: 0L)) return@forEach
+            val region = ChaserRegion.entries.firstOrNull { it.name == regionName }
+            val unsent = ArrayList<ChaserQueueItem>()
+            regionItems.chunked(QUEUE_BATCH_SIZE).forEach { chunk ->
+                if(unsent.isNotEmpty()) {
+                    unsent.addAll(chunk)
+                    return@forEach
+                }
+                val detections = chunk.mapNotNull {
+                    try {
+                        gson.fromJson(String(it.detection.bytes), ChaserQueueItem.Detection::class.java)
+                    }catch (e: Exception) {
+                        null
+                    }
+                }
+                //Unknown regions and corrupt items can never be sent, so are removed as if sent
+                val sent = region == null || sendDetections(detections, certificate, region)
+                if(!sent) {
+                    unsent.addAll(chunk)
+                    return@forEach
+                }
+                withContext(Dispatchers.IO) {
+                    chaserQueueItemTable.delete(chunk.map { it.id })
+                }
+            }
+            if(unsent.isNotEmpty()) {
+                val expired = unsent.filter { it.timestamp < now - QUEUE_MAX_AGE }
+                if(expired.isNotEmpty()) {
+                    withContext(Dispatchers.IO) {
+                        chaserQueueItemTable.delete(expired.map { it.id })
+                    }
+                }
+                scheduleQueueRetry(regionName)
+            }else{
+                queueRetries.remove(regionName)?.cancelIfNotCurrent()
+            }
+        }
+    }
+
+    /**
+     *  Backs off sending to [regionName] and schedules a retry, replacing any retry already
+     *  scheduled for it so repeated failures don't pile up retries. Must be called holding
+     *  queueLock.
+     */
+    private suspend fun scheduleQueueRetry(regionName: String) {
+        val previous = queueRetries[regionName]
+        previous?.cancelIfNotCurrent()
+        val retryDelay = ((previous?.delay ?: 0L) * 2)
+            .coerceIn(QUEUE_RETRY_DELAY_MIN, QUEUE_RETRY_DELAY_MAX)
+        val job = scope.launch {
+            delay(retryDelay)
+            flushQueue(force = true)
+        }
+        queueRetries[regionName] =
+            QueueRetry(retryDelay, System.currentTimeMillis() + retryDelay, job)
+    }
+
+    /**
+     *  Cancels this retry, unless it is the one currently running the flush
+     */
+    private suspend fun QueueRetry.cancelIfNotCurrent() {
+        if(job != currentCoroutineContext()[Job]) {
+            job.cancel()
+        }
+    }
+
+    /**
+     *  Sends [detections] to the [region]'s Chaser server. Returns `false` if they could not be
+     *  sent and should be tried again later, or `true` if they were sent or can never be sent.
+     */
+    private suspend fun sendDetections(
+        detections: List<ChaserQueueItem.Detection>,
         certificate: ChaserCertificate.Certificate,
-        region: ChaserRegion,
-        location: Location
-    ) {
-        val nonce = getNonce(region) ?: return
-        val accessToken = getAccessToken(region, certificate, nonce) ?: return
-        val privIds = nonOwnerTags.mapNotNull { tag ->
-            tag.tagData.getPrivIdForUrl().takeIf { tag.tagData.encryptionFlag }
+        region: ChaserRegion
+    ): Boolean {
+        if(detections.isEmpty()) return true
+        val accessToken = accessTokens.getAccessToken(region, certificate) ?: return false
+        val tags = detections.map {
+            Pair(it, TagData(Base64.decode(it.serviceData, Base64.NO_WRAP)))
         }
+        val privIds = tags.mapNotNull { (_, tagData) ->
+            tagData.getPrivIdForUrl().takeIf { tagData.encryptionFlag }
+        }.distinct()
         val ciphers = if(privIds.isNotEmpty()) {
-            chaserService.getPublicKeys(
-                region,
-                accessToken.accessToken,
-                *privIds.toTypedArray()
-            ).get(name = "publicKeys")?.getCiphers() ?: emptyMap()
+            getCiphers(region, accessToken, privIds) ?: return false
         }else emptyMap()
-        val chaserTags = nonOwnerTags.mapNotNull { nonOwnerTag ->
-            val serviceData = Base64.encodeToString(nonOwnerTag.tagData.serviceData, Base64.NO_WRAP)
-            val cipher = ciphers[nonOwnerTag.tagData.getPrivIdForUrl()]
-            if(cipher == null && nonOwnerTag.tagData.encryptionFlag) {
+        val chaserTags = tags.mapNotNull { (detection, tagData) ->
+            val cipher = ciphers[tagData.getPrivIdForUrl()]
+            if(cipher == null && tagData.encryptionFlag) {
                 //If the Cipher load failed & encryption is enabled, don't leak location to server
                 return@mapNotNull null
             }
-            val latitude = if(cipher != null) {
-                cipher.doFinal(location.latitude.toString().toByteArray()).let {
-                    Base64.encodeToString(it, Base64.NO_WRAP)
-                }
-            }else location.latitude.toString()
-            val longitude = if(cipher != null) {
-                cipher.doFinal(location.longitude.toString().toByteArray()).let {
-                    Base64.encodeToString(it, Base64.NO_WRAP)
+            val (latitude, longitude) = if(cipher != null) {
+                //Ciphers are cached and shared, so can't be used at the same time
+                synchronized(cipher) {
+                    val latitude = cipher.doFinal(detection.latitude.toString().toByteArray())
+                    val longitude = cipher.doFinal(detection.longitude.toString().toByteArray())
+                    Pair(
+                        Base64.encodeToString(latitude, Base64.NO_WRAP),
+                        Base64.encodeToString(longitude, Base64.NO_WRAP)
+                    )
                 }
-            }else location.longitude.toString()
+            }else{
+                Pair(detection.latitude.toString(), detection.longitude.toString())
+            }
             ChaserTag(
                 geoLocation = ChaserGeoLocation(
-                    accuracy = location.accuracy.toString(),
-                    battery = nonOwnerTag.tagData.batteryLevel.name,
+                    accuracy = detection.accuracy.toString(),
+                    battery = tagData.batteryLevel.name,
                     latitude = latitude,
                     longitude = longitude,
-                    method = location.provider.toString(),
-                    rssi = nonOwnerTag.rssi.toString(),
-                    speed = location.speed.toString(),
-                    timestamp = nonOwnerTag.lastReceivedTime
+                    method = detection.provider.toString(),
+                    rssi = detection.rssi.toString(),
+                    speed = detection.speed.toString(),
+                    timestamp = detection.receivedTime
                 ),
-                tagAdvertisement = TagAdvertisement(serviceData)
+                tagAdvertisement = TagAdvertisement(detection.serviceData)
             )
         }
         //All request construction failed, don't send request
-        if(chaserTags.isEmpty()) return
+        if(chaserTags.isEmpty()) return true
         val locationBody = ChaserLocationsRequest(
             items = chaserTags,
             findNode = accessToken.findNode.copy(
@@ -222,9 +385,44 @@ class ChaserRepositoryImpl(
                 )
             )
         )
-        chaserCount.increment(nonOwnerTags.size)
         chaserService.sendLocations(region, accessToken.accessToken, locationBody)
-            .get(name = "chaserSendLocations")
+            .get(name = "chaserSendLocations") ?: run {
+                //The token may have been revoked, so get a new one next time
+                accessTokens.invalidate(region, accessToken)
+                return false
+            }
+        chaserCount.increment(chaserTags.size)
+        return true
+    }
+
+    /**
+     *  Returns a [Cipher] for each of the [privIds] which has encryption enabled, using cached
+     *  public keys where possible and requesting the rest from the server. Returns `null` if the
+     *  request failed.
+     */
+    private suspend fun getCiphers(
+        region: ChaserRegion,
+        accessToken: ChaserAccessTokenResponse,
+        privIds: List<String>
+    ): Map<String, Cipher>? {
+        val now = System.currentTimeMillis()
+        val cached = privIds.mapNotNull { privId ->
+            publicKeyCache.get(privId)?.takeIf { it.expiryTime > now }?.let {
+                Pair(privId, it.cipher)
+            }
+        }.toMap()
+        val missing = privIds.filterNot { cached.containsKey(it) }
+        if(missing.isEmpty()) return cached
+        val loaded = chaserService.getPublicKeys(
+            region,
+            accessToken.accessToken,
+            *missing.toTypedArray()
+        ).get(name = "publicKeys")?.getCiphers() ?: return null
+        val expiryTime = now + PUBLIC_KEY_CACHE_DURATION
+        loaded.forEach { (privId, cipher) ->
+            publicKeyCache.put(privId, CachedCipher(cipher, expiryTime))
+        }
+        return cached + loaded
     }
 
     /**
@@ -261,9 +459,9 @@ class ChaserRepositoryImpl(
             //Construct Cipher from the final key and map it to the private ID provided
             try {
                 val spec = X509EncodedKeySpec(encryptionKey)
-                val publicKey = KeyFactory.getInstance("EC", BouncyCastleProvider())
+                val publicKey = KeyFactory.getInstance("EC", bouncyCastleProvider)
                     .generatePublic(spec)
-                Cipher.getInstance("ECIES", BouncyCastleProvider()).apply {
+                Cipher.getInstance("ECIES", bouncyCastleProvider).apply {
                     init(Cipher.ENCRYPT_MODE, publicKey)
                 }.let { cipher ->
                     Pair(it.pid, cipher)
@@ -280,11 +478,8 @@ class ChaserRepositoryImpl(
      */
     private fun decryptChaserData(data: ByteArray): ByteArray? {
         return try {
-            val keyStore = KeyStore.getInstance(KEYSTORE_ANDROID).apply {
-                load(null)
-            }
             val cipher = Cipher.getInstance("RSA/ECB/PKCS1Padding").apply {
-                init(Cipher.DECRYPT_MODE, keyStore.getKey(KEYSTORE_CHASER, "".toCharArray()))
+                init(Cipher.DECRYPT_MODE, androidKeyStore.getKey(KEYSTORE_CHASER, "".toCharArray()))
             }
             cipher.doFinal(data)
         }catch (e: Exception){
@@ -360,9 +555,8 @@ class ChaserRepositoryImpl(
     }
 
     private fun getPublicKey(): String {
-        val keyStore = KeyStore.getInstance(KEYSTORE_ANDROID).apply {
-            load(null)
-        }
+        publicKey?.let { return it }
+        val keyStore = androidKeyStore
         if(keyStore.getEntry(KEYSTORE_CHASER, null) !is PrivateKeyEntry) {
             generateKeyPair()
         }
@@ -370,7 +564,9 @@ class ChaserRepositoryImpl(
             generateKeyPair()
         }
         val publicKey = keyStore.getCertificate(KEYSTORE_CHASER).publicKey ?: return ""
-        return Base64.encodeToString(publicKey.encoded, Base64.NO_WRAP)
+        return Base64.encodeToString(publicKey.encoded, Base64.NO_WRAP).also {
+            this.publicKey = it
+        }
     }
 
     @SuppressLint("WrongConstant")
@@ -410,6 +606,104 @@ class ChaserRepositoryImpl(
         }
     }
 
+    /**
+     *  Returns when this token expires, in epoch millis. The server may provide either an epoch
+     *  time in millis or seconds, or a lifetime in seconds.
+     */
+    private fun ChaserAccessTokenResponse.getExpiryTime(now: Long): Long {
+        return when {
+            expirationTime > 1_000_000_000_000L -> expirationTime
+            expirationTime > 1_000_000_000L -> expirationTime * 1000L
+            expirationTime > 0L -> now + expirationTime * 1000L
+            else -> now + ACCESS_TOKEN_DEFAULT_LIFETIME
+        }
+    }
+
+    /**
+     *  Caches access tokens per region until they expire, refreshing them in the background
+     *  shortly before they do. Concurrent requests for the same region share one nonce & access
+     *  token request.
+     */
+    private inner class AccessTokenManager {
+
+        private val lock = Mutex()
+        private val tokens = HashMap<ChaserRegion, CachedAccessToken>()
+        private val refreshes = HashMap<ChaserRegion, Deferred<ChaserAccessTokenResponse?>>()
+
+        suspend fun getAccessToken(
+            region: ChaserRegion,
+            certificate: ChaserCertificate.Certificate
+        ): ChaserAccessTokenResponse? {
+            val now = System.currentTimeMillis()
+            val refresh = lock.withLock {
+                val cached = tokens[region]?.takeIf { it.expiryTime > now }
+                if(cached != null) {
+                    if(cached.expiryTime - ACCESS_TOKEN_REFRESH_MARGIN <= now) {
+                        //Still valid for now, but refresh it in the background for next time
+                        getOrStartRefresh(region, certificate)
+                    }
+                    return cached.token
+                }
+                getOrStartRefresh(region, certificate)
+            }
+            return refresh.await()
+        }
+
+        /**
+         *  Removes [token] from the cache, if it's still the current one for [region]
+         */
+        suspend fun invalidate(region: ChaserRegion, token: ChaserAccessTokenResponse) {
+            lock.withLock {
+                if(tokens[region]?.token == token) {
+                    tokens.remove(region)
+                }
+            }
+        }
+
+        private fun getOrStartRefresh(
+            region: ChaserRegion,
+            certificate: ChaserCertificate.Certificate
+        ): Deferred<ChaserAccessTokenResponse?> {
+            refreshes[region]?.let { return it }
+            return scope.async(Dispatchers.IO) {
+                val token = try {
+                    getNonce(region)?.let { nonce ->
+                        getAccessToken(region, certificate, nonce)
+                    }
+                }catch (e: Exception) {
+                    null
+                }
+                lock.withLock {
+                    refreshes.remove(region)
+                    if(token != null) {
+                        val expiryTime = token.getExpiryTime(System.currentTimeMillis())
+                        tokens[region] = CachedAccessToken(token, expiryTime)
+                    }
+                }
+                token
+            }.also {
+                refreshes[region] = it
+            }
+        }
+
+    }
+
+    private data class CachedCipher(
+        val cipher: Cipher,
+        val expiryTime: Long
+    )
+
+    private data class CachedAccessToken(
+        val token: ChaserAccessTokenResponse,
+        val expiryTime: Long
+    )
+
+    private data class QueueRetry(
+        val delay: Long,
+        val time: Long,
+        val job: Job
+    )
+
     private data class EncryptionData(
         @SerializedName("items")
         val items: List<Item>
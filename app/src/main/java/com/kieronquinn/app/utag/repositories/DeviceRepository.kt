@@ -17,10 +17,10 @@ import com.kieronquinn.app.utag.repositories.CacheRepository.Companion.getCache
 import com.kieronquinn.app.utag.utils.extensions.dip
 import com.kieronquinn.app.utag.utils.extensions.get
 import com.kieronquinn.app.utag.utils.extensions.scaleAndRecycle
+import com.kieronquinn.app.utag.utils.extensions.sharedClient
 import com.kieronquinn.app.utag.utils.extensions.url
 import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.withContext
-import okhttp3.OkHttpClient
 import okhttp3.Request
 import org.koin.core.component.KoinComponent
 import org.koin.core.component.inject
@@ -56,7 +56,7 @@ class DeviceRepositoryImpl(
     private val glide = Glide.with(context)
     private val bitmapCache = HashMap<BitmapCacheEntry, Pair<Bitmap, Bitmap>>()
 
-    private val okHttpClient = OkHttpClient().newBuilder().apply {
+    private val okHttpClient = sharedClient().newBuilder().apply {
         followRedirects(true)
     }.build()
 
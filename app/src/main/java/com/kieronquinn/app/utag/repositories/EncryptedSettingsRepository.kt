@@ -11,7 +11,9 @@ import com.kieronquinn.app.utag.repositories.EncryptedSettingsRepository.PinTime
 import com.kieronquinn.app.utag.repositories.EncryptedSettingsRepository.RefreshPeriod
 import com.kieronquinn.app.utag.repositories.EncryptedSettingsRepository.UtsSensitivity
 import com.kieronquinn.app.utag.repositories.EncryptedSettingsRepository.WidgetRefreshPeriod
+import com.kieronquinn.app.utag.utils.extensions.deriveLookupKey
 import com.kieronquinn.app.utag.utils.preferences.SharedPreferencesResolver
+import com.kieronquinn.app.utag.utils.room.RoomEncryptionHelper.RoomEncryptionFailedCallback
 import kotlinx.coroutines.CoroutineScope
 import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.flow.SharingStarted
@@ -20,6 +22,7 @@ import kotlinx.coroutines.flow.combine
 import kotlinx.coroutines.flow.stateIn
 import kotlinx.coroutines.withContext
 import java.security.SecureRandom
+import java.time.Duration
 import java.time.ZonedDateTime
 import javax.crypto.KeyGenerator
 import javax.crypto.SecretKey
@@ -56,6 +59,12 @@ interface EncryptedSettingsRepository: BaseSettingsRepository {
     @IgnoreInBackup
     val offlineAccessToken: UTagSetting<String>
 
+    /**
+     *  Time at which [offlineAccessToken] expires, or 0 if unknown
+     */
+    @IgnoreInBackup
+    val offlineAccessTokenExpiry: UTagSetting<Long>
+
     /**
      *  Refresh token for [offlineAccessToken], 90 day expiry time. After that, [userAuthToken]
      *  should be used to generate a new token.
@@ -70,6 +79,12 @@ interface EncryptedSettingsRepository: BaseSettingsRepository {
     @IgnoreInBackup
     val iotToken: UTagSetting<String>
 
+    /**
+     *  Time at which [iotToken] expires, or 0 if unknown
+     */
+    @IgnoreInBackup
+    val iotTokenExpiry: UTagSetting<Long>
+
     /**
      *  Refresh token for [iotToken], 90 day expiry time. After that, [userAuthToken] should be
      *  used to generate a new token.
@@ -199,6 +214,12 @@ interface EncryptedSettingsRepository: BaseSettingsRepository {
      */
     fun getDatabaseEncryptionKey(): SecretKey
 
+    /**
+     *  The key used to create lookup keys for the Room database, derived from the encryption key.
+     *  This is cached, and dropped when the encryption key is regenerated.
+     */
+    fun getDatabaseLookupKey(): SecretKey
+
     /**
      *  The encryption IV used to encrypt sensitive data stored in the Room database.
      */
@@ -223,12 +244,12 @@ interface EncryptedSettingsRepository: BaseSettingsRepository {
         NEVER(R.string.refresh_period_never);
 
         /**
-         *  Gets the next [ZonedDateTime] for this period, or `null` if the period is set to
-         *  [NEVER]
+         *  Gets the next [ZonedDateTime] for this period after [from], or `null` if the period is
+         *  set to [NEVER]
          */
-        fun getNext(): ZonedDateTime? {
+        fun getNext(from: ZonedDateTime = ZonedDateTime.now()): ZonedDateTime? {
             if(step == null) return null
-            val now = ZonedDateTime.now()
+            val now = from
             val currentMinute = now.minute
             val minutes = (0..59 step step)
             val nextMinute = minutes.firstOrNull { it > currentMinute }
@@ -238,6 +259,14 @@ interface EncryptedSettingsRepository: BaseSettingsRepository {
                 now.withMinute(0).plusHours(1)
             }.withSecond(0).withNano(0)
         }
+
+        /**
+         *  Gets the time between refreshes for this period, or `null` if the period is set to
+         *  [NEVER]
+         */
+        fun getInterval(): Duration? {
+            return step?.let { Duration.ofMinutes(it.toLong()) }
+        }
     }
 
     enum class WidgetRefreshPeriod(@StringRes val label: Int, private val step: Int? = null) {
@@ -250,12 +279,12 @@ interface EncryptedSettingsRepository: BaseSettingsRepository {
         NEVER(R.string.refresh_period_never);
 
         /**
-         *  Gets the next [ZonedDateTime] for this period, or `null` if the period is set to
-         *  [NEVER]
+         *  Gets the next [ZonedDateTime] for this period after [from], or `null` if the period is
+         *  set to [NEVER]
          */
-        fun getNext(): ZonedDateTime? {
+        fun getNext(from: ZonedDateTime = ZonedDateTime.now()): ZonedDateTime? {
             if(step == null) return null
-            val now = ZonedDateTime.now()
+            val now = from
             val currentHour = now.hour
             val hours = (0..23 step step)
             val nextHour = hours.firstOrNull { it > currentHour }
@@ -290,15 +319,17 @@ interface EncryptedSettingsRepository: BaseSettingsRepository {
 
 class EncryptedSettingsRepositoryImpl(
     context: Context
-): BaseSettingsRepositoryImpl(), EncryptedSettingsRepository {
+): BaseSettingsRepositoryImpl(), EncryptedSettingsRepository, RoomEncryptionFailedCallback {
 
     companion object {
         private const val KEY_AUTH_SERVER_URL = "auth_server_url"
         private const val KEY_USER_AUTH_TOKEN = "user_auth_token"
         private const val KEY_IOT_TOKEN = "iot_token"
+        private const val KEY_IOT_TOKEN_EXPIRY = "iot_token_expiry"
         private const val KEY_IOT_REFRESH_TOKEN = "iot_refresh_token"
         private const val KEY_LOGIN_ID = "login_id"
         private const val KEY_OFFLINE_ACCESS_TOKEN = "offline_access_token"
+        private const val KEY_OFFLINE_ACCESS_TOKEN_EXPIRY = "offline_access_token_expiry"
         private const val KEY_OFFLINE_ACCESS_REFRESH_TOKEN = "offline_access_refresh_token"
         private const val KEY_USER_ID = "user_id"
         private const val KEY_AUTH_COUNTRY_CODE = "auth_country_code"
@@ -359,9 +390,11 @@ class EncryptedSettingsRepositoryImpl(
     override val authServerUrl = string(KEY_AUTH_SERVER_URL, "")
     override val userAuthToken = string(KEY_USER_AUTH_TOKEN, "")
     override val iotToken = string(KEY_IOT_TOKEN, "")
+    override val iotTokenExpiry = long(KEY_IOT_TOKEN_EXPIRY, 0L)
     override val iotRefreshToken = string(KEY_IOT_REFRESH_TOKEN, "")
     override val loginId = string(KEY_LOGIN_ID, "")
     override val offlineAccessToken = string(KEY_OFFLINE_ACCESS_TOKEN, "")
+    override val offlineAccessTokenExpiry = long(KEY_OFFLINE_ACCESS_TOKEN_EXPIRY, 0L)
     override val offlineAccessRefreshToken = string(KEY_OFFLINE_ACCESS_REFRESH_TOKEN, "")
     override val userId = string(KEY_USER_ID, "")
     override val authCountryCode = string(KEY_AUTH_COUNTRY_CODE, "")
@@ -450,6 +483,20 @@ class EncryptedSettingsRepositoryImpl(
         return loadEncryptionKey() ?: saveEncryptionKey()
     }
 
+    @Volatile
+    private var databaseLookupKey: SecretKey? = null
+
+    @Synchronized
+    override fun getDatabaseLookupKey(): SecretKey {
+        return databaseLookupKey ?: getDatabaseEncryptionKey().deriveLookupKey().also {
+            databaseLookupKey = it
+        }
+    }
+
+    override fun onEncryptionFailed() {
+        databaseLookupKey = null
+    }
+
     @Synchronized
     override fun getDatabaseEncryptionIV(): IvParameterSpec {
         return loadEncryptionIV() ?: saveEncryptionIV()
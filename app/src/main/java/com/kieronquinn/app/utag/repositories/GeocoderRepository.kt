@@ -1,20 +1,24 @@
 package com.kieronquinn.app.utag.repositories
 
 import android.content.Context
+import android.util.LruCache
 import com.google.android.gms.maps.model.LatLng
 import com.kieronquinn.app.utag.model.EncryptedValue
 import com.kieronquinn.app.utag.model.database.GeocodedAddress
 import com.kieronquinn.app.utag.model.database.UTagDatabase
+import com.kieronquinn.app.utag.utils.extensions.createLookupKey
 import com.kieronquinn.app.utag.utils.extensions.geocode
 import com.kieronquinn.app.utag.utils.extensions.merge
-import com.kieronquinn.app.utag.utils.extensions.roundForGeocoding
+import com.kieronquinn.app.utag.utils.extensions.toGeocodingCell
 import com.kieronquinn.app.utag.utils.room.RoomEncryptionHelper.RoomEncryptionFailedCallback
+import kotlinx.coroutines.Deferred
 import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.MainScope
+import kotlinx.coroutines.async
 import kotlinx.coroutines.launch
-import kotlinx.coroutines.sync.Mutex
-import kotlinx.coroutines.sync.withLock
 import kotlinx.coroutines.withContext
+import java.time.Duration
+import java.util.concurrent.atomic.AtomicInteger
 
 interface GeocoderRepository: RoomEncryptionFailedCallback {
 
@@ -23,10 +27,17 @@ interface GeocoderRepository: RoomEncryptionFailedCallback {
      *  not available or the location returns no addresses, `null` is returned. [LatLng]s are
      *  rounded to remove an acceptable amount of accuracy before being sent to increase collisions
      *  and reduce network calls, since addresses are encrypted and cached in the database against
-     *  a hash of the location.
+     *  a keyed hash of the location. Concurrent requests for the same location share one lookup.
      */
     suspend fun geocode(location: LatLng, firstLineOnly: Boolean = false): String?
 
+    /**
+     *  Returns addresses which are already cached for the given geocoding [cells] (see
+     *  [toGeocodingCell]), without calling the Geocoder. Cells with no cached address are not
+     *  included in the result.
+     */
+    suspend fun getCachedAddresses(cells: Collection<Long>): Map<Long, String>
+
     /**
      *  Clears cached Geocoded addresses. They're kept in the main database to intentionally make it
      *  harder to clear the addresses by mistake, for example if bulk-clearing cache, since they
@@ -38,57 +49,168 @@ interface GeocoderRepository: RoomEncryptionFailedCallback {
 
 class GeocoderRepositoryImpl(
     private val context: Context,
-    database: UTagDatabase
+    database: UTagDatabase,
+    private val encryptedSettingsRepository: EncryptedSettingsRepository
 ): GeocoderRepository {
 
+    companion object {
+        /**
+         *  Number of addresses to keep in memory in front of the database
+         */
+        private const val MEMORY_CACHE_SIZE = 256
+
+        /**
+         *  Maximum number of addresses to keep in the database. When exceeded, the oldest
+         *  addresses are removed.
+         */
+        private const val MAX_CACHED_ADDRESSES = 5000
+
+        /**
+         *  Addresses older than this are removed, since they may have changed
+         */
+        private val MAX_ADDRESS_AGE = Duration.ofDays(90)
+
+        /**
+         *  How many addresses to insert between trims of the database
+         */
+        private const val TRIM_INTERVAL = 50
+
+        /**
+         *  Maximum number of keys to query at once, to stay under SQLite's variable limit
+         */
+        private const val BULK_QUERY_SIZE = 500
+    }
+
     private val scope = MainScope()
-    private val databaseLock = Mutex()
     private val geocodedAddressTable = database.geocodedAddressTable()
+    private val memoryCache = LruCache<Long, String>(MEMORY_CACHE_SIZE)
+    private val inFlight = HashMap<Long, Deferred<String?>>()
+    private val insertsSinceTrim = AtomicInteger(0)
+
+    init {
+        scope.launch(Dispatchers.IO) {
+            trimCache()
+        }
+    }
 
     override suspend fun geocode(location: LatLng, firstLineOnly: Boolean): String? {
-        val roundedLocation = location.roundForGeocoding()
         val format: String.() -> String? = {
             if(firstLineOnly) firstLineOrNull() else this
         }
-        return (getCachedAddressOrNull(roundedLocation) ?: context.geocode(location)
-            ?.merge(location)
-            ?.also { cacheAddress(roundedLocation, it) })
-            ?.format()
+        return getAddress(location.toGeocodingCell(), location)?.format()
+    }
+
+    override suspend fun getCachedAddresses(cells: Collection<Long>): Map<Long, String> {
+        val addresses = HashMap<Long, String>()
+        val missingCells = cells.distinct().filter { cell ->
+            val address = memoryCache.get(cell)
+            if(address != null) {
+                addresses[cell] = address
+            }
+            address == null
+        }
+        if(missingCells.isEmpty()) return addresses
+        withContext(Dispatchers.IO) {
+            val cellKeys = missingCells.associateBy { getCellKey(it) }
+            cellKeys.keys.chunked(BULK_QUERY_SIZE).forEach { chunk ->
+                val rows = try {
+                    geocodedAddressTable.getAddresses(chunk)
+                }catch (e: IllegalStateException) {
+                    //Address is somehow null in database, skip this chunk
+                    emptyList()
+                }
+                rows.forEach {
+                    val cell = cellKeys[it.cellKey] ?: return@forEach
+                    val address = String(it.address.bytes, Charsets.UTF_8)
+                    memoryCache.put(cell, address)
+                    addresses[cell] = address
+                }
+            }
+        }
+        return addresses
     }
 
     override suspend fun clearCache() {
+        memoryCache.evictAll()
         withContext(Dispatchers.IO) {
             geocodedAddressTable.clear()
         }
     }
 
-    private suspend fun getCachedAddressOrNull(location: LatLng): String? = databaseLock.withLock {
-        withContext(Dispatchers.IO) {
-            val hash = location.hashCode()
-            try {
-                geocodedAddressTable.getAddress(hash)?.address?.bytes?.let {
-                    String(it, Charsets.UTF_8)
+    /**
+     *  Returns the address for a given [cell], from memory, the database, or the Geocoder. If the
+     *  same cell is already being loaded, this waits for that request rather than starting a
+     *  new one.
+     */
+    private suspend fun getAddress(cell: Long, location: LatLng): String? {
+        memoryCache.get(cell)?.let { return it }
+        val request = synchronized(inFlight) {
+            inFlight.getOrPut(cell) {
+                scope.async(Dispatchers.IO) {
+                    try {
+                        loadAddress(cell, location)
+                    }finally {
+                        synchronized(inFlight) {
+                            inFlight.remove(cell)
+                        }
+                    }
                 }
-            }catch (e: IllegalStateException) {
-                //Address is somehow null in database, just return null
-                null
             }
         }
+        return request.await()
     }
 
-    private suspend fun cacheAddress(location: LatLng, address: String) = databaseLock.withLock {
-        withContext(Dispatchers.IO) {
-            val geocodedAddress = GeocodedAddress(
-                location.hashCode(),
-                EncryptedValue(address.toByteArray(Charsets.UTF_8))
-            )
-            geocodedAddressTable.insert(geocodedAddress)
+    private suspend fun loadAddress(cell: Long, location: LatLng): String? {
+        val cellKey = getCellKey(cell)
+        val address = getCachedAddressOrNull(cellKey) ?: context.geocode(location)
+            ?.merge(location)?.also {
+                cacheAddress(cellKey, it)
+            }
+        if(address != null) {
+            memoryCache.put(cell, address)
         }
+        return address
+    }
+
+    private fun getCellKey(cell: Long): String {
+        return encryptedSettingsRepository.getDatabaseLookupKey().createLookupKey(cell.toString())
+    }
+
+    private fun getCachedAddressOrNull(cellKey: String): String? {
+        return try {
+            geocodedAddressTable.getAddress(cellKey)?.address?.bytes?.let {
+                String(it, Charsets.UTF_8)
+            }
+        }catch (e: IllegalStateException) {
+            //Address is somehow null in database, just return null
+            null
+        }
+    }
+
+    private fun cacheAddress(cellKey: String, address: String) {
+        val geocodedAddress = GeocodedAddress(
+            cellKey,
+            EncryptedValue(address.toByteArray(Charsets.UTF_8)),
+            System.currentTimeMillis()
+        )
+        geocodedAddressTable.insert(geocodedAddress)
+        if(insertsSinceTrim.incrementAndGet() >= TRIM_INTERVAL) {
+            insertsSinceTrim.set(0)
+            trimCache()
+        }
+    }
+
+    private fun trimCache() {
+        geocodedAddressTable.deleteOlderThan(
+            System.currentTimeMillis() - MAX_ADDRESS_AGE.toMillis()
+        )
+        geocodedAddressTable.trimToNewest(MAX_CACHED_ADDRESSES)
     }
 
     override fun onEncryptionFailed() {
         scope.launch {
             //Nuke the database since the values will no longer decrypt
+            memoryCache.evictAll()
             geocodedAddressTable.clear()
         }
     }
@@ -97,4 +219,4 @@ class GeocoderRepositoryImpl(
         return if(contains(",")) split(",")[0] else this
     }
 
-}
\ No newline at end of file
+}
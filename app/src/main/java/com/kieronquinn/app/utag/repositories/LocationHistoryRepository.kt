@@ -1,44 +1,86 @@
 package com.kieronquinn.app.utag.repositories
 
 import android.os.Parcelable
+import android.os.SystemClock
 import com.google.android.gms.maps.model.LatLng
+import com.google.gson.Gson
 import com.kieronquinn.app.utag.model.BatteryLevel
 import com.kieronquinn.app.utag.model.D2DStatus
 import com.kieronquinn.app.utag.model.DeviceType
 import com.kieronquinn.app.utag.model.GeoLocation
+import com.kieronquinn.app.utag.model.database.HistoryLocation
+import com.kieronquinn.app.utag.model.database.HistorySyncState
+import com.kieronquinn.app.utag.model.database.UTagDatabase
 import com.kieronquinn.app.utag.repositories.ApiRepository.GetLocationHistoryResult
+import com.kieronquinn.app.utag.repositories.ApiRepository.LocationHistorySession
 import com.kieronquinn.app.utag.repositories.LocationHistoryRepository.ExportLocation
 import com.kieronquinn.app.utag.repositories.LocationHistoryRepository.HistoryState
 import com.kieronquinn.app.utag.repositories.LocationHistoryRepository.LocationHistoryPoint
 import com.kieronquinn.app.utag.utils.extensions.atEndOfDay
+import com.kieronquinn.app.utag.utils.extensions.createLookupKey
 import com.kieronquinn.app.utag.utils.extensions.groupConsecutiveBy
 import com.kieronquinn.app.utag.utils.extensions.toEpochMilli
+import com.kieronquinn.app.utag.utils.extensions.toEncryptedValue
+import com.kieronquinn.app.utag.utils.extensions.toGeocodingCell
+import com.kieronquinn.app.utag.utils.room.RoomEncryptionHelper.RoomEncryptionFailedCallback
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.MainScope
+import kotlinx.coroutines.async
+import kotlinx.coroutines.awaitAll
+import kotlinx.coroutines.coroutineScope
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.sync.Mutex
+import kotlinx.coroutines.sync.Semaphore
+import kotlinx.coroutines.sync.withLock
+import kotlinx.coroutines.sync.withPermit
+import kotlinx.coroutines.withContext
 import kotlinx.parcelize.Parcelize
 import me.moallemi.tools.daterange.localdate.rangeTo
+import java.time.Duration
 import java.time.Instant
 import java.time.LocalDate
 import java.time.LocalDateTime
 import java.time.ZoneId
 import java.time.ZonedDateTime
+import java.util.concurrent.ConcurrentHashMap
 import kotlin.math.roundToInt
 
-interface LocationHistoryRepository {
+interface LocationHistoryRepository: RoomEncryptionFailedCallback {
 
     /**
      *  Gets location history from server for the past n [days] (as separate requests due to the
-     *  limit being 500 locations per response), gets each address by geocoding, groups them
-     *  consecutively to simplify the UI, with each location getting either a start/end time or
-     *  a singular time of visiting.
+     *  limit being 500 locations per response, with up to [dayParallelism] days loaded at once),
+     *  gets each address by geocoding, groups them consecutively to simplify the UI, with each
+     *  location getting either a start/end time or a singular time of visiting.
      *
-     *  Optionally provide [onProgressChanged] to receive updates with progress from 0-100%
+     *  Downloaded locations are stored locally, so later loads only request locations newer than
+     *  the last sync. Stored locations are sent to [onPartialResult] while newer ones download.
+     *
+     *  Optionally provide [onProgressChanged] to receive updates with progress from 0-100%, and
+     *  [onPartialResult] to receive [HistoryState.Loaded] states while addresses are still being
+     *  geocoded. Up to [geocodeParallelism] uncached locations are geocoded at once.
      */
     suspend fun getLocationHistory(
         deviceId: String,
         days: Int = 8,
         limit: Int = 500,
+        dayParallelism: Int = 3,
+        geocodeParallelism: Int = 4,
+        onPartialResult: suspend (HistoryState.Loaded) -> Unit = {},
         onProgressChanged: suspend (Int?) -> Unit = {}
     ): HistoryState
 
+    /**
+     *  Clears locally stored location history for [deviceId], for example when the history is
+     *  deleted from the server
+     */
+    suspend fun clearLocalHistory(deviceId: String)
+
+    /**
+     *  Clears all locally stored location history, for example when signing out
+     */
+    suspend fun clearLocalHistory()
+
     data class LocationHistoryPoint(
         val location: LatLng,
         val address: String?,
@@ -82,7 +124,8 @@ interface LocationHistoryRepository {
             override val timestamp: Long = System.currentTimeMillis(),
             val items: List<LocationHistoryPoint>,
             val exportLocations: List<ExportLocation>,
-            val decryptFailed: Boolean
+            val decryptFailed: Boolean,
+            val isPartial: Boolean = false
         ) : HistoryState(deviceId, timestamp)
 
         data class Error(
@@ -115,81 +158,338 @@ interface LocationHistoryRepository {
 class LocationHistoryRepositoryImpl(
     private val apiRepository: ApiRepository,
     private val geocoderRepository: GeocoderRepository,
-    private val contentCreatorRepository: ContentCreatorRepository
+    private val contentCreatorRepository: ContentCreatorRepository,
+    private val encryptionRepository: EncryptionRepository,
+    private val gson: Gson,
+    private val encryptedSettingsRepository: EncryptedSettingsRepository,
+    database: UTagDatabase
 ) : LocationHistoryRepository {
 
+    companion object {
+        /**
+         *  Minimum time between partial results being sent while geocoding
+         */
+        private const val PARTIAL_RESULT_INTERVAL = 500L
+
+        /**
+         *  Locations can be uploaded some time after they were recorded, for example by Tags which
+         *  have been offline, so each sync requests the whole day of the last synced time and this
+         *  many days before it again. Locations uploaded later than this are not picked up until
+         *  the stored history is cleared.
+         */
+        private const val SYNC_OVERLAP_DAYS = 1L
+
+        /**
+         *  Stored locations older than this are removed, since they're outside of the maximum
+         *  history range
+         */
+        private val MAX_STORED_AGE = Duration.ofDays(9)
+    }
+
+    private val scope = MainScope()
+    private val historyLocationTable = database.historyLocationTable()
+    private val historySyncStateTable = database.historySyncStateTable()
+
     override suspend fun getLocationHistory(
         deviceId: String,
         days: Int,
         limit: Int,
+        dayParallelism: Int,
+        geocodeParallelism: Int,
+        onPartialResult: suspend (HistoryState.Loaded) -> Unit,
         onProgressChanged: suspend (Int?) -> Unit
     ): HistoryState {
         val now = ZonedDateTime.now()
         val zone = now.zone
+        val startTime = now.toLocalDate().minusDays(days.toLong()).atStartOfDay()
+            .toEpochMilli(now.offset)
+        //Content creator mode uses its own history, which isn't stored
+        if(contentCreatorRepository.isEnabled()) {
+            val result = getNetworkHistory(
+                deviceId, startTime, now, limit, dayParallelism, onProgressChanged
+            ) ?: return HistoryState.Error(deviceId)
+            onProgressChanged(null)
+            return createHistory(
+                deviceId, result.first, zone, result.second, geocodeParallelism, onPartialResult
+            )
+        }
+        val deviceKey = getDeviceKey(deviceId)
+        val allStoredLocations = getStoredLocations(deviceKey, startTime)
+        val syncedUntil = getSyncedUntil(deviceKey)
+        val fetchFrom = if(syncedUntil != null && allStoredLocations.isNotEmpty()) {
+            Instant.ofEpochMilli(syncedUntil).atZone(zone).toLocalDate()
+                .minusDays(SYNC_OVERLAP_DAYS).atStartOfDay(zone).toInstant().toEpochMilli()
+                .coerceAtLeast(startTime)
+        }else startTime
+        //Encrypted locations are only served from storage when they could be decrypted now
+        val hasPin = encryptionRepository.hasPin()
+        val storedLocations = if(hasPin) {
+            allStoredLocations
+        }else{
+            allStoredLocations.filterNot { it.wasEncrypted }
+        }
+        val isStoredPinRequired = !hasPin && allStoredLocations.any {
+            it.wasEncrypted && it.time < fetchFrom
+        }
+        val storedBeforeFetch = storedLocations.filter { it.time < fetchFrom }
+        if(storedLocations.isNotEmpty()) {
+            //Show what we have while the rest downloads
+            onPartialResult(createStoredState(deviceId, storedLocations, zone))
+        }
+        val fetchStartedAt = System.currentTimeMillis()
+        val result = getNetworkHistory(
+            deviceId, fetchFrom, now, limit, dayParallelism, onProgressChanged
+        )
+        onProgressChanged(null)
+        if(result == null) {
+            //Network failed, fall back to what's stored if anything
+            return if(storedLocations.isNotEmpty()) {
+                createHistory(
+                    deviceId,
+                    storedLocations,
+                    zone,
+                    isStoredPinRequired,
+                    geocodeParallelism,
+                    onPartialResult
+                )
+            }else HistoryState.Error(deviceId)
+        }
+        val (fetchedLocations, isFetchPinRequired) = result
+        //Only move the sync point forward if everything in the window was decrypted
+        storeLocations(
+            deviceKey,
+            fetchedLocations,
+            fetchStartedAt.takeIf { !isFetchPinRequired },
+            now.toInstant().toEpochMilli() - MAX_STORED_AGE.toMillis()
+        )
+        val locations = storedBeforeFetch.plus(fetchedLocations)
+            .distinctBy { it.time }
+            .sortedBy { it.time }
+        val isPinRequired = isFetchPinRequired || isStoredPinRequired
+        return createHistory(
+            deviceId, locations, zone, isPinRequired, geocodeParallelism, onPartialResult
+        )
+    }
+
+    override suspend fun clearLocalHistory(deviceId: String) {
+        val deviceKey = getDeviceKey(deviceId)
+        withContext(Dispatchers.IO) {
+            historyLocationTable.clear(deviceKey)
+            historySyncStateTable.clear(deviceKey)
+        }
+    }
+
+    override suspend fun clearLocalHistory() {
+        withContext(Dispatchers.IO) {
+            historyLocationTable.clear()
+            historySyncStateTable.clear()
+        }
+    }
+
+    override fun onEncryptionFailed() {
+        scope.launch {
+            //Stored locations will no longer decrypt, so remove them
+            clearLocalHistory()
+        }
+    }
+
+    private fun getDeviceKey(deviceId: String): String {
+        return encryptedSettingsRepository.getDatabaseLookupKey().createLookupKey(deviceId)
+    }
+
+    /**
+     *  Loads location history from the network from [startTime] until the end of today, one
+     *  request per day with up to [dayParallelism] days loaded at once. Returns the locations and
+     *  whether a PIN was required, or `null` if any request failed.
+     */
+    private suspend fun getNetworkHistory(
+        deviceId: String,
+        startTime: Long,
+        now: ZonedDateTime,
+        limit: Int,
+        dayParallelism: Int,
+        onProgressChanged: suspend (Int?) -> Unit
+    ): Pair<List<GeoLocation>, Boolean>? {
         val offset = now.offset
         val endDay = now.toLocalDate()
-        val startDay = endDay.minusDays(days.toLong())
+        val startDay = Instant.ofEpochMilli(startTime).atZone(now.zone).toLocalDate()
         val locations = ArrayList<GeoLocation>()
         var isPinRequired = false
-        val range = startDay..endDay
-        val totalDays = range.count()
-        val chunk = 100 / totalDays
-        var currentDay = 0
-        val onProgressChangedWithDays: suspend (Float) -> Unit = {
-            val baseProgress = chunk * currentDay
-            val subProgress = chunk * it
-            onProgressChanged((baseProgress + subProgress).roundToInt())
-        }
-        for (day in range) {
-            val start = day.atStartOfDay().toEpochMilli(offset)
-            val end = day.atEndOfDay().toEpochMilli(offset)
-            val dayLocations = getFullLocationHistory(
-                deviceId, start, end, limit, onProgressChangedWithDays
-            )
-            dayLocations.forEach {
-                when(it) {
-                    is GetLocationHistoryResult.Locations -> {
-                        locations.addAll(it.locations)
-                        if(it.pinRequired) {
-                            isPinRequired = true
+        val range = (startDay..endDay).toList()
+        val session = SessionProvider(deviceId)
+        val progress = ProgressTracker(range.size, onProgressChanged)
+        val semaphore = Semaphore(dayParallelism.coerceAtLeast(1))
+        //Days are loaded concurrently, but results are kept in day order
+        val dayResults = coroutineScope {
+            range.mapIndexed { index, day ->
+                async {
+                    semaphore.withPermit {
+                        val start = day.atStartOfDay().toEpochMilli(offset)
+                            .coerceAtLeast(startTime)
+                        val end = day.atEndOfDay().toEpochMilli(offset)
+                        getFullLocationHistory(session, start, end, limit) {
+                            progress.onDayProgressChanged(index, it)
+                        }.also {
+                            progress.onDayProgressChanged(index, 1f)
                         }
                     }
-                    is GetLocationHistoryResult.Error -> {
-                        return HistoryState.Error(deviceId)
+                }
+            }.awaitAll()
+        }
+        dayResults.flatten().forEach {
+            when(it) {
+                is GetLocationHistoryResult.Locations -> {
+                    locations.addAll(it.locations)
+                    if(it.pinRequired) {
+                        isPinRequired = true
                     }
                 }
+                is GetLocationHistoryResult.Error -> return null
             }
-            currentDay++
         }
-        //Everything after this is indeterminate
-        onProgressChanged(null)
-        val exportLocations = ArrayList<ExportLocation>()
-        return HistoryState.Loaded(deviceId, items = locations.map {
-            val latLng = LatLng(it.latitude, it.longitude)
-            val address = geocoderRepository.geocode(latLng)
-            val time = LocalDateTime.ofInstant(Instant.ofEpochMilli(it.time), zone)
-            val exportLocation = ExportLocation(
-                latLng,
-                address,
-                Instant.ofEpochMilli(it.time),
-                it.method,
-                it.accuracy,
-                it.speed,
-                it.rssi,
-                it.battery,
-                it.findHost,
-                it.nearby,
-                it.onDemand,
-                it.connectedUserId,
-                it.connectedDeviceId,
-                it.d2dStatus,
-                it.wasEncrypted
+        return Pair(locations, isPinRequired)
+    }
+
+    private suspend fun createHistory(
+        deviceId: String,
+        locations: List<GeoLocation>,
+        zone: ZoneId,
+        isPinRequired: Boolean,
+        geocodeParallelism: Int,
+        onPartialResult: suspend (HistoryState.Loaded) -> Unit
+    ): HistoryState.Loaded {
+        val items = locations.toHistoryItems(zone)
+        val addresses = geocode(items, geocodeParallelism) { partialAddresses ->
+            onPartialResult(
+                createLoadedState(deviceId, items, partialAddresses, isPinRequired, true)
+            )
+        }
+        return createLoadedState(deviceId, items, addresses, isPinRequired, false)
+    }
+
+    /**
+     *  Creates a partial state from stored locations, using only already cached addresses
+     */
+    private suspend fun createStoredState(
+        deviceId: String,
+        locations: List<GeoLocation>,
+        zone: ZoneId
+    ): HistoryState.Loaded {
+        val items = locations.toHistoryItems(zone)
+        val addresses = geocoderRepository.getCachedAddresses(items.map { it.cell })
+        return createLoadedState(deviceId, items, addresses, false, true)
+    }
+
+    private fun List<GeoLocation>.toHistoryItems(zone: ZoneId) = map {
+        val latLng = LatLng(it.latitude, it.longitude)
+        val time = LocalDateTime.ofInstant(Instant.ofEpochMilli(it.time), zone)
+        LocationHistoryItem(latLng, latLng.toGeocodingCell(), time, it)
+    }
+
+    private suspend fun getStoredLocations(
+        deviceKey: String,
+        startTime: Long
+    ): List<GeoLocation> = withContext(Dispatchers.IO) {
+        try {
+            historyLocationTable.getLocations(deviceKey, startTime).mapNotNull {
+                gson.fromJson(String(it.location.bytes), GeoLocation::class.java)
+            }
+        }catch (e: Exception) {
+            //Stored locations are corrupt or from an old format, start again
+            historyLocationTable.clear(deviceKey)
+            historySyncStateTable.clear(deviceKey)
+            emptyList()
+        }
+    }
+
+    private suspend fun getSyncedUntil(deviceKey: String): Long? = withContext(Dispatchers.IO) {
+        historySyncStateTable.getSyncState(deviceKey)?.syncedUntil
+    }
+
+    private suspend fun storeLocations(
+        deviceKey: String,
+        locations: List<GeoLocation>,
+        syncedUntil: Long?,
+        trimBefore: Long
+    ) = withContext(Dispatchers.IO) {
+        historyLocationTable.insert(locations.map {
+            HistoryLocation(deviceKey, it.time, gson.toJson(it).toEncryptedValue())
+        })
+        if(syncedUntil != null) {
+            historySyncStateTable.insert(HistorySyncState(deviceKey, syncedUntil))
+        }
+        historyLocationTable.trim(trimBefore)
+    }
+
+    /**
+     *  Geocodes the unique cells in [items]. Cached addresses are loaded in bulk first, then the
+     *  rest are geocoded with up to [parallelism] requests at once. [onPartialResult] is called
+     *  with the addresses so far when the cached addresses are loaded, and then periodically as
+     *  the rest arrive.
+     */
+    private suspend fun geocode(
+        items: List<LocationHistoryItem>,
+        parallelism: Int,
+        onPartialResult: suspend (Map<Long, String>) -> Unit
+    ): Map<Long, String> = coroutineScope {
+        val cells = items.associate { it.cell to it.latLng }
+        val addresses = ConcurrentHashMap<Long, String>()
+        addresses.putAll(geocoderRepository.getCachedAddresses(cells.keys))
+        val missing = cells.filterKeys { !addresses.containsKey(it) }
+        if(missing.isEmpty()) return@coroutineScope addresses
+        onPartialResult(addresses.toMap())
+        val semaphore = Semaphore(parallelism.coerceAtLeast(1))
+        val partialResultLock = Mutex()
+        var lastPartialResult = SystemClock.elapsedRealtime()
+        missing.map { (cell, latLng) ->
+            async {
+                val address = semaphore.withPermit {
+                    geocoderRepository.geocode(latLng)
+                } ?: return@async
+                addresses[cell] = address
+                partialResultLock.withLock {
+                    val now = SystemClock.elapsedRealtime()
+                    if(now - lastPartialResult >= PARTIAL_RESULT_INTERVAL) {
+                        lastPartialResult = now
+                        onPartialResult(addresses.toMap())
+                    }
+                }
+            }
+        }.awaitAll()
+        addresses
+    }
+
+    private fun createLoadedState(
+        deviceId: String,
+        items: List<LocationHistoryItem>,
+        addresses: Map<Long, String>,
+        isPinRequired: Boolean,
+        isPartial: Boolean
+    ): HistoryState.Loaded {
+        val exportLocations = items.map {
+            ExportLocation(
+                it.latLng,
+                addresses[it.cell],
+                Instant.ofEpochMilli(it.source.time),
+                it.source.method,
+                it.source.accuracy,
+                it.source.speed,
+                it.source.rssi,
+                it.source.battery,
+                it.source.findHost,
+                it.source.nearby,
+                it.source.onDemand,
+                it.source.connectedUserId,
+                it.source.connectedDeviceId,
+                it.source.d2dStatus,
+                it.source.wasEncrypted
             )
-            exportLocations.add(exportLocation)
-            LocationHistoryItem(latLng, address, time, it)
-        }.groupConsecutiveBy { a, b ->
+        }
+        return HistoryState.Loaded(deviceId, items = items.groupConsecutiveBy { a, b ->
+            val aAddress = addresses[a.cell]
+            val bAddress = addresses[b.cell]
             //Group by either the address being the same if not null, or the LatLngs matching
-            (a.address != null && b.address != null && a.address == b.address) || a.latLng == b.latLng
+            (aAddress != null && bAddress != null && aAddress == bAddress) || a.latLng == b.latLng
         }.map {
             val primary = it.first()
             //If there's multiple points for this location, the start time is the first
@@ -206,38 +506,38 @@ class LocationHistoryRepositoryImpl(
             } else null
             LocationHistoryPoint(
                 location = primary.latLng,
-                address = primary.address,
+                address = addresses[primary.cell],
                 startTime = startTime,
                 time = time,
                 endTime = endTime,
                 locations = it.map { item -> item.source }
             )
-        }, exportLocations = exportLocations, decryptFailed = isPinRequired)
+        }, exportLocations = exportLocations, decryptFailed = isPinRequired, isPartial = isPartial)
     }
 
     private data class LocationHistoryItem(
         val latLng: LatLng,
-        val address: String?,
+        val cell: Long,
         val time: LocalDateTime,
         val source: GeoLocation
     )
 
     private suspend fun getFullLocationHistory(
-        deviceId: String,
+        session: SessionProvider,
         startTime: Long,
         endTime: Long,
         limit: Int,
         onProgressChanged: suspend (Float) -> Unit = {}
     ): List<GetLocationHistoryResult> {
         //If content creator mode is enabled, only use that
-        contentCreatorRepository.getLocationHistory(deviceId, startTime, endTime)?.let {
+        contentCreatorRepository.getLocationHistory(session.deviceId, startTime, endTime)?.let {
             return listOf(it)
         }
         val results = ArrayList<GetLocationHistoryResult>()
         var currentStartTime = startTime
         while(true) {
             val result = apiRepository.getLocationHistory(
-                deviceId,
+                session.get(),
                 currentStartTime,
                 endTime,
                 limit,
@@ -257,4 +557,46 @@ class LocationHistoryRepositoryImpl(
         return results
     }
 
-}
\ No newline at end of file
+    /**
+     *  Creates the [LocationHistorySession] for a device the first time it's needed, and then
+     *  shares it between all days of the load. If content creator mode is enabled, it's never
+     *  created.
+     */
+    private inner class SessionProvider(val deviceId: String) {
+
+        private val lock = Mutex()
+        private var session: LocationHistorySession? = null
+
+        suspend fun get(): LocationHistorySession = lock.withLock {
+            session ?: apiRepository.createLocationHistorySession(deviceId).also {
+                session = it
+            }
+        }
+
+    }
+
+    /**
+     *  Combines the progress of each day into an overall percentage. Days load concurrently, so
+     *  updates are only sent when the overall progress increases.
+     */
+    private class ProgressTracker(
+        days: Int,
+        private val onProgressChanged: suspend (Int?) -> Unit
+    ) {
+
+        private val lock = Mutex()
+        private val dayProgress = FloatArray(days)
+        private var lastProgress = -1
+
+        suspend fun onDayProgressChanged(day: Int, progress: Float) = lock.withLock {
+            dayProgress[day] = progress.coerceIn(dayProgress[day], 1f)
+            val overall = ((dayProgress.sum() / dayProgress.size) * 100).roundToInt()
+            if(overall > lastProgress) {
+                lastProgress = overall
+                onProgressChanged(overall)
+            }
+        }
+
+    }
+
+}
@@ -9,9 +9,11 @@ import android.content.IntentFilter
 import android.location.Location
 import android.os.ParcelUuid
 import android.os.Parcelable
+import android.os.SystemClock
 import androidx.core.app.NotificationCompat
 import com.google.android.gms.maps.model.LatLng
 import com.google.android.gms.maps.model.LatLngBounds
+import com.google.gson.Gson
 import com.google.maps.android.ktx.utils.sphericalDistance
 import com.kieronquinn.app.utag.Application.Companion.isMainProcess
 import com.kieronquinn.app.utag.R
@@ -20,6 +22,8 @@ import com.kieronquinn.app.utag.model.EncryptedValue
 import com.kieronquinn.app.utag.model.database.AcknowledgedUnknownTag
 import com.kieronquinn.app.utag.model.database.AcknowledgedUnknownTagTable.Companion.getTag
 import com.kieronquinn.app.utag.model.database.UTagDatabase
+import com.kieronquinn.app.utag.model.database.UnknownTagState
+import com.kieronquinn.app.utag.repositories.EncryptedSettingsRepository.UtsSensitivity
 import com.kieronquinn.app.utag.repositories.NonOwnerTagRepository.NonOwnerTag
 import com.kieronquinn.app.utag.repositories.NonOwnerTagRepository.UnknownTag
 import com.kieronquinn.app.utag.repositories.NotificationRepository.NotificationChannel
@@ -28,30 +32,40 @@ import com.kieronquinn.app.utag.repositories.SmartTagRepository.TagData
 import com.kieronquinn.app.utag.repositories.SmartTagRepository.TagData.TagStateValue
 import com.kieronquinn.app.utag.ui.activities.UnknownTagActivity
 import com.kieronquinn.app.utag.utils.extensions.broadcastReceiverAsFlow
-import com.kieronquinn.app.utag.utils.extensions.delayBy
+import com.kieronquinn.app.utag.utils.extensions.createLookupKey
 import com.kieronquinn.app.utag.utils.extensions.firstNotNull
 import com.kieronquinn.app.utag.utils.extensions.toBoolean
 import com.kieronquinn.app.utag.utils.extensions.toDouble
 import com.kieronquinn.app.utag.utils.extensions.toEncryptedValue
 import com.kieronquinn.app.utag.utils.extensions.toInt
+import com.kieronquinn.app.utag.utils.room.RoomEncryptionHelper.RoomEncryptionFailedCallback
 import com.kieronquinn.app.utag.xposed.Xposed.Companion.ACTION_SCAN_RECEIVED
-import com.kieronquinn.app.utag.xposed.Xposed.Companion.EXTRA_RESULT
+import com.kieronquinn.app.utag.xposed.Xposed.Companion.EXTRA_RESULTS
 import com.kieronquinn.app.utag.xposed.Xposed.Companion.PACKAGE_NAME_ONECONNECT
-import com.kieronquinn.app.utag.xposed.extensions.getParcelableExtraCompat
+import com.kieronquinn.app.utag.xposed.extensions.getParcelableArrayListExtraCompat
 import com.kieronquinn.app.utag.xposed.extensions.verifySecurity
 import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.MainScope
+import kotlinx.coroutines.channels.Channel
 import kotlinx.coroutines.flow.Flow
 import kotlinx.coroutines.flow.SharingStarted
 import kotlinx.coroutines.flow.combine
+import kotlinx.coroutines.flow.drop
 import kotlinx.coroutines.flow.filterNotNull
 import kotlinx.coroutines.flow.first
+import kotlinx.coroutines.flow.flatMapLatest
 import kotlinx.coroutines.flow.map
 import kotlinx.coroutines.flow.stateIn
 import kotlinx.coroutines.launch
+import kotlinx.coroutines.sync.Mutex
+import kotlinx.coroutines.sync.withLock
 import kotlinx.coroutines.withContext
+import kotlinx.coroutines.withTimeoutOrNull
 import kotlinx.parcelize.Parcelize
 import java.time.Duration
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.atomic.AtomicLong
 import kotlin.collections.filterValues
 import kotlin.collections.groupBy
 import kotlin.collections.map
@@ -79,6 +93,12 @@ interface NonOwnerTagRepository {
      */
     fun getUnknownTags(): Flow<List<UnknownTag>>
 
+    /**
+     *  Get a single unknown tag by its [privacyId], or `null` if it no longer meets the minimum
+     *  requirements to show a notification.
+     */
+    fun getUnknownTag(privacyId: String): Flow<UnknownTag?>
+
     /**
      *  Acknowledges an Unknown Tag, preventing notifications from being shown again
      */
@@ -109,6 +129,11 @@ interface NonOwnerTagRepository {
      */
     suspend fun restoreBackup(backups: List<AcknowledgedUnknownTag.Backup>)
 
+    /**
+     *  Get the current state of the scan result queue, for debugging
+     */
+    fun getScanQueueStats(): ScanQueueStats
+
     data class NonOwnerTag(
         val mac: String?,
         val rssi: Int,
@@ -116,6 +141,19 @@ interface NonOwnerTagRepository {
         val lastReceivedTime: Long
     )
 
+    data class ScanQueueStats(
+        val queueDepth: Int,
+        val received: Long,
+        val coalesced: Long,
+        val dropped: Long,
+        val processed: Long
+    ) {
+        override fun toString(): String {
+            return "queued=$queueDepth, received=$received, coalesced=$coalesced, " +
+                    "dropped=$dropped, processed=$processed"
+        }
+    }
+
     @Parcelize
     data class UnknownTag(
         val privacyId: String,
@@ -141,9 +179,10 @@ class NonOwnerTagRepositoryImpl(
     private val smartThingsRepository: SmartThingsRepository,
     private val notificationRepository: NotificationRepository,
     private val context: Context,
-    encryptedSettingsRepository: EncryptedSettingsRepository,
+    private val gson: Gson,
+    private val encryptedSettingsRepository: EncryptedSettingsRepository,
     database: UTagDatabase
-): NonOwnerTagRepository {
+): NonOwnerTagRepository, RoomEncryptionFailedCallback {
 
     companion object {
         private val SERVICE_UUID = ParcelUuid.fromString(SERVICE_ID)
@@ -153,11 +192,20 @@ class NonOwnerTagRepositoryImpl(
         private val UNKNOWN_TAG_CACHE_DURATION = Duration.ofHours(24)
         //Delay to allow tag scan to happen first for known Tags
         private const val SCAN_DELAY = 2500L
+        //Maximum number of scan results waiting for their delay, oldest are dropped past this
+        private const val SCAN_QUEUE_SIZE = 256
+        //Size of the buckets unknown Tag detections are trimmed and summarised in
+        private val UNKNOWN_TAG_BUCKET_DURATION = Duration.ofHours(1)
+        //Maximum number of privacy keys to query at once, to stay under SQLite's variable limit
+        private const val PRIVACY_KEY_CHUNK_SIZE = 500
     }
 
     private val unknownTagTable = database.unknownTagTable()
+    private val unknownTagStateTable = database.unknownTagStateTable()
     private val acknowledgedUnknownTagTable = database.acknowledgedUnknownTagTable()
     private val scope = MainScope()
+    private val scanQueue = ScanQueue()
+    private val unknownTagDetector = UnknownTagDetector()
 
     private val networkContributions = encryptedSettingsRepository.networkContributionsEnabled
         .asFlow().stateIn(scope, SharingStarted.Eagerly, null)
@@ -172,23 +220,43 @@ class NonOwnerTagRepositoryImpl(
         IntentFilter(ACTION_SCAN_RECEIVED)
     ).map {
         it.verifySecurity(PACKAGE_NAME_ONECONNECT)
-        it.getParcelableExtraCompat(EXTRA_RESULT, ScanResult::class.java)
-    }.delayBy(SCAN_DELAY)
+        it.getParcelableArrayListExtraCompat(EXTRA_RESULTS, ScanResult::class.java)
+    }
 
+    /**
+     *  Only Tags which the database reports have been seen enough times over a long enough period
+     *  have their detections loaded and decrypted, the distance check is then done here.
+     */
     private val unknownTags = combine(
-        unknownTagTable.getTags(),
+        utsSensitivity.filterNotNull().flatMapLatest {
+            unknownTagTable.getCandidates(
+                Duration.ofMinutes(it.duration).toMillis(),
+                UNKNOWN_TAG_CACHE_DURATION.toMillis()
+            )
+        },
         acknowledgedUnknownTagTable.getTags()
-    ) { unknownTags, acknowledged ->
+    ) { candidates, acknowledged ->
+        val unknownTags = withContext(Dispatchers.IO) {
+            candidates.map { it.privacyKey }.chunked(PRIVACY_KEY_CHUNK_SIZE).flatMap {
+                unknownTagTable.getDetections(it, UNKNOWN_TAG_CACHE_DURATION.toMillis())
+            }
+        }
         getUnknownTags(unknownTags, acknowledged)
-    }.stateIn(scope, SharingStarted.Eagerly, null)
+    }.stateIn(scope, SharingStarted.WhileSubscribed(), null)
 
     /**
-     *  Privacy ID -> [NonOwnerTag]. Tags are kept for as long as [TAG_CACHE_DURATION]. It's
+     *  The last bucket detections were trimmed to, so trimming only runs once per bucket. Scans
+     *  are handled concurrently, so this is atomic to make sure only one of them trims.
+     */
+    private val lastTrimBucket = AtomicLong(Long.MIN_VALUE)
+
+    /**
+     *  Packed privacy ID -> [NonOwnerTag]. Tags are kept for as long as [TAG_CACHE_DURATION]. It's
      *  possible that a Tag may change its ID in this time, in which case a location may be
      *  reported twice. This only happens for Tags that are below the
      *  [TagStateValue.OVERMATURE_OFFLINE] state, so is only an issue for reporting to Chaser.
      */
-    private val tagCache = HashMap<String, NonOwnerTag>()
+    private val tagCache = SightingCache()
 
     override fun onLocationUpdate() {
         scope.launch {
@@ -197,11 +265,7 @@ class NonOwnerTagRepositoryImpl(
             //Skip if neither are enabled
             if(!networkEnabled && !utsEnabled) return@launch
             val location = smartThingsRepository.getLocation() ?: return@launch
-            val tagCacheEntries = synchronized(tagCache) {
-                //Prune old cache before we use the values so we don't get old tags
-                pruneTagCache()
-                tagCache.values.toList()
-            }
+            val tagCacheEntries = tagCache.snapshot()
             handleTagLocationUpdate(networkEnabled, utsEnabled, tagCacheEntries, location)
         }
     }
@@ -210,6 +274,17 @@ class NonOwnerTagRepositoryImpl(
         return unknownTags.filterNotNull()
     }
 
+    override fun getUnknownTag(privacyId: String): Flow<UnknownTag?> {
+        return combine(
+            unknownTagTable.getDetections(
+                getPrivacyKey(privacyId), UNKNOWN_TAG_CACHE_DURATION.toMillis()
+            ),
+            acknowledgedUnknownTagTable.getTags()
+        ) { unknownTags, acknowledged ->
+            getUnknownTags(unknownTags, acknowledged).firstOrNull()
+        }
+    }
+
     override fun acknowledgeUnknownTag(privacyId: String) {
         scope.launch(Dispatchers.IO) {
             val current = acknowledgedUnknownTagTable.getTag(privacyId)
@@ -239,6 +314,15 @@ class NonOwnerTagRepositoryImpl(
         withContext(Dispatchers.IO) {
             unknownTagTable.trim(lastTimestamp)
         }
+        unknownTagDetector.trim(lastTimestamp)
+    }
+
+    override fun onEncryptionFailed() {
+        scope.launch(Dispatchers.IO) {
+            //Stored detections will no longer decrypt, so remove them
+            unknownTagTable.clear()
+            unknownTagDetector.clear()
+        }
     }
 
     override suspend fun getBackup(): List<AcknowledgedUnknownTag.Backup> {
@@ -281,73 +365,75 @@ class NonOwnerTagRepositoryImpl(
             chaserRepository.sendLocations(tags, location)
         }
         val timestamp = System.currentTimeMillis()
-        tags.forEach { tag ->
-            //Write the Tag to the database if it's overmature
-            if(utsEnabled && tag.tagData.tagState == TagStateValue.OVERMATURE_OFFLINE) {
-                unknownTagTable.insert(
-                    DatabaseUnknownTag(
-                        timestamp = timestamp,
-                        mac = tag.mac?.toEncryptedValue(),
-                        rssi = tag.rssi.toEncryptedValue(),
-                        latitude = location.latitude.toEncryptedValue(),
-                        longitude = location.longitude.toEncryptedValue(),
-                        serviceData = EncryptedValue(tag.tagData.serviceData)
-                    )
-                )
-            }
+        //Write the Tags to the database if they're overmature
+        val overmatureTags = tags.filter {
+            utsEnabled && it.tagData.tagState == TagStateValue.OVERMATURE_OFFLINE
+        }
+        unknownTagTable.insert(overmatureTags.map { tag ->
+            DatabaseUnknownTag(
+                privacyKey = getPrivacyKey(tag.tagData.privacyId),
+                timestamp = timestamp,
+                mac = tag.mac?.toEncryptedValue(),
+                rssi = tag.rssi.toEncryptedValue(),
+                latitude = location.latitude.toEncryptedValue(),
+                longitude = location.longitude.toEncryptedValue(),
+                serviceData = EncryptedValue(tag.tagData.serviceData)
+            )
+        })
+        //Remove stale Tag cache, once the oldest bucket has fully expired
+        val lastBucket = (timestamp - UNKNOWN_TAG_CACHE_DURATION.toMillis()).toBucket()
+        if(lastTrimBucket.getAndSet(lastBucket) != lastBucket) {
+            val lastTimestamp = lastBucket * UNKNOWN_TAG_BUCKET_DURATION.toMillis()
+            unknownTagTable.trim(lastTimestamp)
+            unknownTagDetector.trim(lastTimestamp)
+        }
+        if(overmatureTags.isNotEmpty()) {
+            val followingIds = unknownTagDetector.addDetections(
+                overmatureTags.map { it.tagData.privacyId },
+                timestamp,
+                location.latitude,
+                location.longitude
+            )
+            onFollowingTagsChanged(followingIds)
         }
-        //Remove stale Tag cache
-        val lastTimestamp = timestamp - UNKNOWN_TAG_CACHE_DURATION.toMillis()
-        unknownTagTable.trim(lastTimestamp)
     }
 
-    private fun setupScan() = scope.launch {
-        scanResult.filterNotNull().collect {
-            onScanResult(it)
-        }
+    override fun getScanQueueStats(): ScanQueueStats {
+        return scanQueue.getStats()
     }
 
-    private fun setupUnknownTagNotifications() = scope.launch {
-        unknownTags.filterNotNull().collect {
-            onUnknownTagsChanged(it)
+    private fun setupScan() = scope.launch {
+        launch {
+            scanQueue.run()
+        }
+        scanResult.filterNotNull().collect { results ->
+            results.forEach {
+                scanQueue.offer(it)
+            }
         }
     }
 
-    private suspend fun onScanResult(scanResult: ScanResult) {
-        val tag = decodeScanResult(scanResult) ?: return
-        synchronized(tagCache) {
-            //Store the Tag in the cache, this will overwrite any with the same ID
-            tagCache[tag.tagData.privacyId] = tag
-            //Clear old Tags from cache that exceed the cache time
-            pruneTagCache()
+    private fun setupUnknownTagNotifications() = scope.launch {
+        utsSensitivity.filterNotNull().drop(1).collect {
+            onFollowingTagsChanged(unknownTagDetector.reevaluate())
         }
     }
 
-    /**
-     *  Removes Tags from the cache if they were last seen more than 120 seconds ago
-     */
-    private fun pruneTagCache() {
-        val now = System.currentTimeMillis()
-        tagCache.entries.removeIf {
-            now - it.value.lastReceivedTime > TAG_CACHE_DURATION
-        }
+    private suspend fun onScanResult(scan: PendingScan) {
+        val tag = decodeScanResult(scan) ?: return
+        //Store the Tag in the cache, this will overwrite any with the same ID
+        tagCache.put(tag)
     }
 
     @SuppressLint("MissingPermission")
-    private suspend fun decodeScanResult(scanResult: ScanResult): NonOwnerTag? {
-        val record = scanResult.scanRecord
-        val device = scanResult.device
-        val serviceData = record?.getServiceData(SERVICE_UUID) ?: return null
-        val bleMac = device.address
-        val rssi = scanResult.rssi
-        val tagData = smartTagRepository.decodeServiceData(serviceData)
-        val lastReceivedTime = System.currentTimeMillis()
-        val isKnown = smartTagRepository.isKnownPrivacyId(tagData.privacyId)
+    private suspend fun decodeScanResult(scan: PendingScan): NonOwnerTag? {
+        val tagData = scan.tagData
+        val isKnown = smartTagRepository.isKnownPrivacyId(tagData.packedPrivacyId)
         return NonOwnerTag(
-            bleMac,
-            rssi,
+            scan.result.device.address,
+            scan.result.rssi,
             tagData,
-            lastReceivedTime
+            scan.receivedTime
         ).takeUnless { isKnown }
     }
 
@@ -384,6 +470,22 @@ class NonOwnerTagRepositoryImpl(
         }
     }
 
+    private fun getPrivacyKey(privacyId: String): String {
+        return encryptedSettingsRepository.getDatabaseLookupKey().createLookupKey(privacyId)
+    }
+
+    private fun Long.toBucket(): Long {
+        return this / UNKNOWN_TAG_BUCKET_DURATION.toMillis()
+    }
+
+    private fun UnknownTagState.Summary.matchesRequirements(sensitivity: UtsSensitivity): Boolean {
+        if(count < 2) return false //Checks require at least 2 detections
+        val duration = lastSeen - firstSeen
+        if(duration < Duration.ofMinutes(sensitivity.duration).toMillis()) return false
+        val distance = bounds.northeast.sphericalDistance(bounds.southwest)
+        return distance >= sensitivity.distance
+    }
+
     private suspend fun List<UnknownTag.Detection>.matchesRequirements(): Boolean {
         if(size < 2) return false //Checks require at least 2 detections
         val sensitivity = utsSensitivity.firstNotNull()
@@ -396,11 +498,17 @@ class NonOwnerTagRepositoryImpl(
         return distance >= sensitivity.distance
     }
 
-    private suspend fun onUnknownTagsChanged(unknownTags: List<UnknownTag>) {
+    private suspend fun onFollowingTagsChanged(privacyIds: Set<String>) {
         if(!utsEnabled.firstNotNull()) return //UTS is disabled
-        val tagsToNotify = unknownTags.filter {
-            !it.isSafe && !it.hasAcknowledged
-        }
+        if(privacyIds.isEmpty()) return //Nothing following
+        val acknowledged = withContext(Dispatchers.IO) {
+            acknowledgedUnknownTagTable.getTags().first()
+        }.filter {
+            it.isSafe?.toBoolean() == true || it.hasAcknowledged?.toBoolean() == true
+        }.map {
+            String(it.privacyId.bytes)
+        }.toSet()
+        val tagsToNotify = privacyIds - acknowledged
         if(tagsToNotify.isEmpty()) return //Already notified or all safe
         val title = context.resources.getQuantityString(
             R.plurals.notification_title_unknown_tag,
@@ -429,6 +537,311 @@ class NonOwnerTagRepositoryImpl(
         }
     }
 
+    /**
+     *  Concurrent store of the latest sighting of each Tag, which expires sightings older than
+     *  [TAG_CACHE_DURATION]. Each sighting is also added to a queue in the order they were seen,
+     *  so expiring only needs to look at the oldest sightings rather than every Tag. A queued
+     *  sighting only removes its Tag if the Tag has not been seen again since.
+     */
+    private class SightingCache {
+
+        private val sightings = ConcurrentHashMap<Long, NonOwnerTag>()
+        private val expiryQueue = ConcurrentLinkedQueue<Sighting>()
+
+        fun put(tag: NonOwnerTag) {
+            val privacyId = tag.tagData.packedPrivacyId
+            sightings[privacyId] = tag
+            expiryQueue.add(Sighting(privacyId, tag.lastReceivedTime))
+            prune()
+        }
+
+        /**
+         *  Returns the Tags which have been seen within [TAG_CACHE_DURATION]
+         */
+        fun snapshot(): List<NonOwnerTag> {
+            prune()
+            return sightings.values.toList()
+        }
+
+        private fun prune() {
+            val cutoff = System.currentTimeMillis() - TAG_CACHE_DURATION
+            while(true) {
+                val oldest = expiryQueue.peek() ?: return
+                if(oldest.lastReceivedTime >= cutoff) return
+                //Another thread may have removed it already, in which case it is skipped
+                if(!expiryQueue.remove(oldest)) continue
+                sightings.computeIfPresent(oldest.privacyId) { _, tag ->
+                    tag.takeIf { it.lastReceivedTime > oldest.lastReceivedTime }
+                }
+            }
+        }
+
+        private data class Sighting(val privacyId: Long, val lastReceivedTime: Long)
+
+    }
+
+    private data class PendingScan(
+        val result: ScanResult,
+        val tagData: TagData,
+        val receivedTime: Long,
+        val dueTime: Long
+    )
+
+    /**
+     *  Holds scan results until [SCAN_DELAY] after they arrived, giving the known Tag scan time to
+     *  land first so our own Tags are not treated as non-owner Tags. Each result gets its own
+     *  delay, rather than results waiting behind each other, and results for a privacy ID that
+     *  is already waiting replace the waiting one without extending its delay. If more than
+     *  [SCAN_QUEUE_SIZE] results are waiting, the oldest are dropped.
+     */
+    private inner class ScanQueue {
+
+        /**
+         *  Packed privacy ID -> [PendingScan]. Replacing a value keeps its position, so iteration
+         *  is always in [PendingScan.dueTime] order.
+         */
+        private val pending = LinkedHashMap<Long, PendingScan>()
+        private val wake = Channel<Unit>(Channel.CONFLATED)
+        private val received = AtomicLong()
+        private val coalesced = AtomicLong()
+        private val dropped = AtomicLong()
+        private val processed = AtomicLong()
+
+        fun offer(result: ScanResult) {
+            val serviceData = result.scanRecord?.getServiceData(SERVICE_UUID) ?: return
+            val tagData = smartTagRepository.decodeServiceData(serviceData)
+            val now = SystemClock.elapsedRealtime()
+            val receivedTime = System.currentTimeMillis()
+            received.incrementAndGet()
+            synchronized(pending) {
+                val key = tagData.packedPrivacyId
+                val current = pending[key]
+                if(current != null) {
+                    coalesced.incrementAndGet()
+                    pending[key] = PendingScan(result, tagData, receivedTime, current.dueTime)
+                    return
+                }
+                if(pending.size >= SCAN_QUEUE_SIZE) {
+                    val iterator = pending.values.iterator()
+                    iterator.next()
+                    iterator.remove()
+                    dropped.incrementAndGet()
+                }
+                pending[key] = PendingScan(result, tagData, receivedTime, now + SCAN_DELAY)
+            }
+            wake.trySend(Unit)
+        }
+
+        suspend fun run() {
+            while(true) {
+                val now = SystemClock.elapsedRealtime()
+                val due = ArrayList<PendingScan>()
+                val nextDueTime = synchronized(pending) {
+                    val iterator = pending.values.iterator()
+                    while(iterator.hasNext()) {
+                        val scan = iterator.next()
+                        if(scan.dueTime > now) return@synchronized scan.dueTime
+                        due.add(scan)
+                        iterator.remove()
+                    }
+                    null
+                }
+                due.forEach {
+                    onScanResult(it)
+                    processed.incrementAndGet()
+                }
+                if(nextDueTime != null) {
+                    withTimeoutOrNull(nextDueTime - now) {
+                        wake.receive()
+                    }
+                } else {
+                    wake.receive()
+                }
+            }
+        }
+
+        fun getStats(): ScanQueueStats {
+            return ScanQueueStats(
+                queueDepth = synchronized(pending) { pending.size },
+                received = received.get(),
+                coalesced = coalesced.get(),
+                dropped = dropped.get(),
+                processed = processed.get()
+            )
+        }
+
+    }
+
+    /**
+     *  Keeps a running summary of each unknown Tag's detections, split into hourly buckets so
+     *  those older than [UNKNOWN_TAG_CACHE_DURATION] can be dropped without going back to the
+     *  detections themselves. Each new detection only updates one bucket, and checking if a Tag
+     *  is following the user only needs that Tag's buckets, rather than every detection from the
+     *  last day. Only the summaries are stored, in [UnknownTagState].
+     */
+    private inner class UnknownTagDetector {
+
+        private val lock = Mutex()
+
+        /**
+         *  Privacy ID -> bucket -> [UnknownTagState.Summary], loaded from the database on first use
+         */
+        private var states: HashMap<String, HashMap<Long, UnknownTagState.Summary>>? = null
+        private val following = HashSet<String>()
+
+        /**
+         *  Adds a detection of each of [privacyIds] at the given time and location, returning the
+         *  privacy IDs of all Tags which now meet the requirements to be considered following.
+         */
+        suspend fun addDetections(
+            privacyIds: List<String>,
+            timestamp: Long,
+            latitude: Double,
+            longitude: Double
+        ): Set<String> = lock.withLock {
+            val states = getStates()
+            val bucket = timestamp.toBucket()
+            val sensitivity = utsSensitivity.firstNotNull()
+            val updated = privacyIds.distinct().map { privacyId ->
+                val buckets = states.getOrPut(privacyId) { HashMap() }
+                val summary = buckets[bucket]?.plus(timestamp, latitude, longitude)
+                    ?: UnknownTagState.Summary.create(privacyId, timestamp, latitude, longitude)
+                buckets[bucket] = summary
+                evaluate(privacyId, buckets, sensitivity)
+                UnknownTagState(
+                    getPrivacyKey(privacyId),
+                    bucket,
+                    gson.toJson(summary).toEncryptedValue()
+                )
+            }
+            withContext(Dispatchers.IO) {
+                unknownTagStateTable.insert(updated)
+            }
+            following.toSet()
+        }
+
+        /**
+         *  Checks all Tags again, for when the sensitivity has changed
+         */
+        suspend fun reevaluate(): Set<String> = lock.withLock {
+            val sensitivity = utsSensitivity.firstNotNull()
+            getStates().forEach { (privacyId, buckets) ->
+                evaluate(privacyId, buckets, sensitivity)
+            }
+            following.toSet()
+        }
+
+        /**
+         *  Removes buckets which only contain detections from before [lastTimestamp]
+         */
+        suspend fun trim(lastTimestamp: Long) = lock.withLock {
+            val lastBucket = lastTimestamp.toBucket()
+            val sensitivity = utsSensitivity.firstNotNull()
+            val states = getStates()
+            states.entries.toList().forEach { (privacyId, buckets) ->
+                if(buckets.keys.removeIf { it < lastBucket }) {
+                    evaluate(privacyId, buckets, sensitivity)
+                }
+                if(buckets.isEmpty()) {
+                    states.remove(privacyId)
+                }
+            }
+            withContext(Dispatchers.IO) {
+                unknownTagStateTable.trim(lastBucket)
+            }
+        }
+
+        suspend fun clear() = lock.withLock {
+            states = HashMap()
+            following.clear()
+            withContext(Dispatchers.IO) {
+                unknownTagStateTable.clear()
+            }
+        }
+
+        private suspend fun evaluate(
+            privacyId: String,
+            buckets: HashMap<Long, UnknownTagState.Summary>,
+            sensitivity: UtsSensitivity
+        ) {
+            trimWindowEdge(privacyId, buckets)
+            val summary = buckets.values.reduceOrNull { summary, other -> summary.plus(other) }
+            if(summary?.matchesRequirements(sensitivity) == true) {
+                following.add(privacyId)
+            }else{
+                following.remove(privacyId)
+            }
+        }
+
+        /**
+         *  Buckets are only removed once all of their detections are older than
+         *  [UNKNOWN_TAG_CACHE_DURATION], so the oldest bucket may still include some which are. If
+         *  it does, its summary is rebuilt from the stored detections which are still within the
+         *  window, so the window is exact rather than up to a bucket longer.
+         */
+        private suspend fun trimWindowEdge(
+            privacyId: String,
+            buckets: HashMap<Long, UnknownTagState.Summary>
+        ) {
+            val windowStart = System.currentTimeMillis() - UNKNOWN_TAG_CACHE_DURATION.toMillis()
+            val edgeBucket = windowStart.toBucket()
+            buckets.keys.removeIf { it < edgeBucket }
+            if((buckets[edgeBucket]?.firstSeen ?: return) >= windowStart) return
+            val privacyKey = getPrivacyKey(privacyId)
+            val bucketEnd = (edgeBucket + 1) * UNKNOWN_TAG_BUCKET_DURATION.toMillis()
+            val rebuilt = withContext(Dispatchers.IO) {
+                unknownTagTable.getDetections(privacyKey, windowStart, bucketEnd)
+            }.fold(null as UnknownTagState.Summary?) { summary, detection ->
+                val latitude = detection.latitude.toDouble()
+                val longitude = detection.longitude.toDouble()
+                summary?.plus(detection.timestamp, latitude, longitude)
+                    ?: UnknownTagState.Summary.create(
+                        privacyId, detection.timestamp, latitude, longitude
+                    )
+            }
+            if(rebuilt == null) {
+                buckets.remove(edgeBucket)
+                return
+            }
+            buckets[edgeBucket] = rebuilt
+            withContext(Dispatchers.IO) {
+                unknownTagStateTable.insert(listOf(
+                    UnknownTagState(privacyKey, edgeBucket, gson.toJson(rebuilt).toEncryptedValue())
+                ))
+            }
+        }
+
+        private suspend fun getStates(): HashMap<String, HashMap<Long, UnknownTagState.Summary>> {
+            states?.let { return it }
+            val lastTimestamp = System.currentTimeMillis() - UNKNOWN_TAG_CACHE_DURATION.toMillis()
+            val summaries = withContext(Dispatchers.IO) {
+                try {
+                    unknownTagStateTable.getStates(lastTimestamp.toBucket()).map {
+                        it.bucket to gson.fromJson(
+                            String(it.summary.bytes), UnknownTagState.Summary::class.java
+                        )
+                    }
+                }catch (e: Exception) {
+                    //Stored summaries are corrupt, start again
+                    unknownTagStateTable.clear()
+                    emptyList()
+                }
+            }
+            val sensitivity = utsSensitivity.firstNotNull()
+            return HashMap<String, HashMap<Long, UnknownTagState.Summary>>().apply {
+                summaries.forEach { (bucket, summary) ->
+                    getOrPut(summary.privacyId) { HashMap() }[bucket] = summary
+                }
+                forEach { (privacyId, buckets) ->
+                    evaluate(privacyId, buckets, sensitivity)
+                }
+            }.also {
+                states = it
+            }
+        }
+
+    }
+
     init {
         //We only want to run these from the service process
         if(!isMainProcess()) {
@@ -26,27 +26,32 @@ import com.kieronquinn.app.utag.repositories.SmartTagRepository.TagState.Loaded.
 import com.kieronquinn.app.utag.utils.extensions.broadcastReceiverAsFlow
 import com.kieronquinn.app.utag.utils.extensions.firstNotNull
 import com.kieronquinn.app.utag.utils.extensions.toEncryptedValue
+import com.kieronquinn.app.utag.utils.extensions.toLong
 import com.kieronquinn.app.utag.utils.room.RoomEncryptionHelper.RoomEncryptionFailedCallback
 import com.kieronquinn.app.utag.xposed.extensions.applySecurity
 import com.kieronquinn.app.utag.xposed.extensions.verifySecurity
+import kotlinx.coroutines.CompletableDeferred
 import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.Job
 import kotlinx.coroutines.MainScope
+import kotlinx.coroutines.delay
 import kotlinx.coroutines.flow.Flow
 import kotlinx.coroutines.flow.MutableStateFlow
 import kotlinx.coroutines.flow.SharingStarted
 import kotlinx.coroutines.flow.StateFlow
 import kotlinx.coroutines.flow.combine
 import kotlinx.coroutines.flow.filterNotNull
-import kotlinx.coroutines.flow.first
 import kotlinx.coroutines.flow.map
-import kotlinx.coroutines.flow.mapLatest
 import kotlinx.coroutines.flow.stateIn
 import kotlinx.coroutines.launch
 import kotlinx.coroutines.sync.Mutex
+import kotlinx.coroutines.sync.withLock
 import kotlinx.coroutines.withContext
+import kotlinx.parcelize.IgnoredOnParcel
 import kotlinx.parcelize.Parcelize
 import org.koin.core.component.KoinComponent
 import org.koin.core.component.inject
+import java.util.concurrent.ConcurrentHashMap
 import com.kieronquinn.app.utag.model.database.TagData as CachedTagData
 
 interface SmartTagRepository: RoomEncryptionFailedCallback {
@@ -135,10 +140,10 @@ interface SmartTagRepository: RoomEncryptionFailedCallback {
     fun decodeServiceData(serviceData: ByteArray): TagData
 
     /**
-     *  Returns if a [privacyId] is stored in the database, which is used to know if a Tag is our
-     *  own.
+     *  Returns if a [privacyId] (see [TagData.packedPrivacyId]) is stored in the database, which is
+     *  used to know if a Tag is our own.
      */
-    suspend fun isKnownPrivacyId(privacyId: String): Boolean
+    suspend fun isKnownPrivacyId(privacyId: Long): Boolean
 
     /**
      *  Clear known tags in the Room database, for example if the user has logged out
@@ -194,30 +199,84 @@ interface SmartTagRepository: RoomEncryptionFailedCallback {
         ): TagState(deviceId, timestamp, isInPassiveMode)
     }
 
+    /**
+     *  View over the raw 20 byte service data advertised by a Tag. Fields are decoded from the
+     *  buffer on demand rather than up front, and the Base64 and hex strings are only created if
+     *  they are actually used, since this is created for every scan result. The buffer is not
+     *  copied, so it must not be modified after being wrapped.
+     */
     @Parcelize
-    data class TagData(
-        val serviceData: ByteArray,
-        val encodedServiceData: String,
-        val version: Int,
-        val advertisingType: Int,
-        val tagState: TagStateValue,
-        val privacyId: String,
-        val privId: String,
-        val region: ChaserRegion?,
-        val batteryLevel: BatteryLevel,
-        val uwbFlag: Boolean,
-        val encryptionFlag: Boolean,
-        val motionDetection: Boolean,
-        val activityTrackingMode: Boolean,
-        val signature: ByteArray,
-        val reserved: ByteArray,
-        val agingCounter: Int
-    ): Parcelable {
+    class TagData(val serviceData: ByteArray): Parcelable {
+
+        val version
+            get() = (serviceData[0].toInt() and 0xF0) shr 4
+
+        val advertisingType
+            get() = serviceData[0].toInt() shr 3 and 1
+
+        val tagState
+            get() = TagStateValue.getTagState(serviceData[0].toInt() and 7)
+
+        /**
+         *  Bytes 4-12 of the service data packed big-endian into a Long, which can be compared
+         *  and hashed without allocating.
+         */
+        val packedPrivacyId: Long
+            get() {
+                var id = 0L
+                for(i in 4 until 12) {
+                    id = (id shl 8) or (serviceData[i].toLong() and 0xFF)
+                }
+                return id
+            }
+
+        val region
+            get() = ChaserRegion.getRegion((serviceData[12].toInt() and 0xF0) shr 4)
+
+        val batteryLevel
+            get() = BatteryLevel.fromIntLevel(serviceData[12].toInt() and 3)
+
+        val uwbFlag
+            get() = serviceData[12].toInt() shr 2 and 1 == 1
+
+        val encryptionFlag
+            get() = serviceData[12].toInt() shr 3 and 1 == 1
+
+        val motionDetection
+            get() = (serviceData[13].toInt() and 0xFF) shr 7 == 1
+
+        val activityTrackingMode
+            get() = (serviceData[15].toInt() and 1) != 0
+
+        val agingCounter
+            get() = serviceData[1].toInt() and 0xFF or
+                    ((serviceData[2].toInt() and 0xFF) shl 8) or
+                    ((serviceData[3].toInt() and 0xFF) shl 16)
+
+        val reserved
+            get() = serviceData.copyOfRange(14, 16)
+
+        val signature
+            get() = serviceData.copyOfRange(16, 20)
+
+        @IgnoredOnParcel
+        val encodedServiceData by lazy {
+            Base64.encodeToString(serviceData, Base64.NO_WRAP)
+        }
+
+        @OptIn(ExperimentalStdlibApi::class)
+        @IgnoredOnParcel
+        val privacyId by lazy {
+            packedPrivacyId.toHexString()
+        }
+
+        @IgnoredOnParcel
+        val privId by lazy {
+            Base64.encodeToString(serviceData, 4, 8, Base64.NO_WRAP)
+        }
 
         fun getPrivIdForUrl(): String {
-            return Base64.encodeToString(
-                Base64.decode(privId, Base64.NO_WRAP), Base64.URL_SAFE
-            ).trim()
+            return Base64.encodeToString(serviceData, 4, 8, Base64.URL_SAFE).trim()
         }
 
         override fun equals(other: Any?): Boolean {
@@ -226,44 +285,14 @@ interface SmartTagRepository: RoomEncryptionFailedCallback {
 
             other as TagData
 
+            if (packedPrivacyId != other.packedPrivacyId) return false
             if (!serviceData.contentEquals(other.serviceData)) return false
-            if (encodedServiceData != other.encodedServiceData) return false
-            if (version != other.version) return false
-            if (advertisingType != other.advertisingType) return false
-            if (tagState != other.tagState) return false
-            if (privacyId != other.privacyId) return false
-            if (privId != other.privId) return false
-            if (region != other.region) return false
-            if (batteryLevel != other.batteryLevel) return false
-            if (uwbFlag != other.uwbFlag) return false
-            if (encryptionFlag != other.encryptionFlag) return false
-            if (motionDetection != other.motionDetection) return false
-            if (activityTrackingMode != other.activityTrackingMode) return false
-            if (!signature.contentEquals(other.signature)) return false
-            if (!reserved.contentEquals(other.reserved)) return false
-            if (agingCounter != other.agingCounter) return false
 
             return true
         }
 
         override fun hashCode(): Int {
-            var result = serviceData.contentHashCode()
-            result = 31 * result + encodedServiceData.hashCode()
-            result = 31 * result + version
-            result = 31 * result + advertisingType
-            result = 31 * result + tagState.ordinal
-            result = 31 * result + privacyId.hashCode()
-            result = 31 * result + privId.hashCode()
-            result = 31 * result + (region?.ordinal ?: 0)
-            result = 31 * result + batteryLevel.ordinal
-            result = 31 * result + uwbFlag.hashCode()
-            result = 31 * result + encryptionFlag.hashCode()
-            result = 31 * result + motionDetection.hashCode()
-            result = 31 * result + activityTrackingMode.hashCode()
-            result = 31 * result + signature.contentHashCode()
-            result = 31 * result + reserved.contentHashCode()
-            result = 31 * result + agingCounter
-            return result
+            return packedPrivacyId.hashCode()
         }
 
         enum class TagStateValue(private val value: Int?) {
@@ -326,10 +355,26 @@ class SmartTagRepositoryImpl(
     private val context: Context,
     private val passiveModeRepository: PassiveModeRepository,
     private val contentCreatorRepository: ContentCreatorRepository,
-    database: UTagDatabase
+    database: UTagDatabase,
+    private val serviceDataFlushInterval: Long = SERVICE_DATA_FLUSH_INTERVAL
 ): SmartTagRepository, KoinComponent {
 
+    companion object {
+        /**
+         *  How long to wait for other Tags' location requests before sending a batch. Tag state
+         *  flows all refresh from the same trigger, so their requests arrive close together.
+         */
+        private const val LOCATION_BATCH_WINDOW = 250L
+
+        /**
+         *  Tags advertise many times a minute. Unless something significant has changed, service
+         *  data is only written to the database this often, and kept in memory in between.
+         */
+        private const val SERVICE_DATA_FLUSH_INTERVAL = 60_000L
+    }
+
     private val scope = MainScope()
+    private val locationBatcher = LocationBatcher()
 
     private val refreshTagBus = context.broadcastReceiverAsFlow(
         IntentFilter(ACTION_REFRESH_TAG_STATES)
@@ -346,11 +391,8 @@ class SmartTagRepositoryImpl(
     private val tagStates = HashMap<String, StateFlow<TagState?>>()
     private var connectedTagCount = 0
 
-    private val knownPrivacyIds = tagData.getTags().mapLatest { tags ->
-        tags.mapNotNull { it.lastServiceData }.map {
-            decodeServiceData(it.bytes).privacyId
-        }
-    }.stateIn(scope, SharingStarted.Eagerly, null)
+    private val knownTagIndex = KnownTagIndex()
+    private val serviceDataWriter = ServiceDataWriter()
 
     override fun getConnectedTagCount(): Int {
         return connectedTagCount
@@ -396,7 +438,7 @@ class SmartTagRepositoryImpl(
         val deviceInfo = deviceRepository.getDeviceInfo(deviceId)
             ?: return TagState.Error(deviceId, isInPassiveMode = passiveModeEnabled, code = 404)
         val apiLocation = contentCreatorRepository.getLocation(deviceId)
-            ?: apiRepository.getLocation(deviceId)
+            ?: locationBatcher.getLocation(deviceId, deviceInfo.ownerId)
         val location = apiLocation.let {
             when(it) {
                 is GetLocationResult.Location -> {
@@ -442,34 +484,21 @@ class SmartTagRepositoryImpl(
 
     override suspend fun cacheKnownTags(tags: Map<String, String>) {
         withContext(Dispatchers.IO) {
-            val currentTags = tagData.getTags().first()
             tags.forEach {
                 val hash = it.key.hashCode()
-                val tagData = currentTags.firstOrNull { current -> current.deviceIdHash == hash }
-                    ?.copy(name = EncryptedValue(it.value.toByteArray()))
-                    ?: CachedTagData(hash, name = EncryptedValue(it.value.toByteArray()))
-                this@SmartTagRepositoryImpl.tagData.insert(tagData)
+                val name = EncryptedValue(it.value.toByteArray())
+                if(tagData.updateName(hash, name) == 0) {
+                    tagData.insert(CachedTagData(hash, name = name))
+                }
             }
         }
     }
 
     override suspend fun cacheServiceData(deviceId: String, serviceData: ByteArray, bleMac: String) {
-        withContext(Dispatchers.IO) {
-            val hash = deviceId.hashCode()
-            val tagData = tagData.getTags().first().firstOrNull { current ->
-                current.deviceIdHash == hash
-            }?.copy(
-                lastServiceData = EncryptedValue(serviceData),
-                bleMac = bleMac.toEncryptedValue(),
-                serviceDataTimestamp = System.currentTimeMillis().toEncryptedValue()
-            ) ?: CachedTagData(
-                hash,
-                lastServiceData = EncryptedValue(serviceData),
-                bleMac = bleMac.toEncryptedValue(),
-                serviceDataTimestamp = System.currentTimeMillis().toEncryptedValue()
-            )
-            this@SmartTagRepositoryImpl.tagData.insert(tagData)
-        }
+        val hash = deviceId.hashCode()
+        val entry = ServiceDataEntry(serviceData, bleMac, System.currentTimeMillis())
+        val previous = knownTagIndex.put(hash, entry)
+        serviceDataWriter.write(hash, entry, previous)
     }
 
     override fun getKnownTagNames(): Flow<Map<Int, String>> {
@@ -484,6 +513,9 @@ class SmartTagRepositoryImpl(
     }
 
     override suspend fun getCachedTagData(deviceId: String): TagData? {
+        knownTagIndex.get(deviceId.hashCode())?.let {
+            return decodeServiceData(it.serviceData)
+        }
         val current = withContext(Dispatchers.IO) {
             tagData.getTag(deviceId.hashCode())
         } ?: return null
@@ -491,66 +523,28 @@ class SmartTagRepositoryImpl(
     }
 
     override suspend fun getCachedBleMac(deviceIdHash: Int): String? {
+        knownTagIndex.get(deviceIdHash)?.bleMac?.let {
+            return it
+        }
         val current = withContext(Dispatchers.IO) {
             tagData.getTag(deviceIdHash)
         } ?: return null
         return current.bleMac?.let { String(it.bytes) }
     }
 
-    override suspend fun isKnownPrivacyId(privacyId: String): Boolean {
-        return knownPrivacyIds.firstNotNull().contains(privacyId)
+    override suspend fun isKnownPrivacyId(privacyId: Long): Boolean {
+        return knownTagIndex.knownPrivacyIds.firstNotNull().binarySearch(privacyId) >= 0
     }
 
-    @OptIn(ExperimentalStdlibApi::class)
     override fun decodeServiceData(serviceData: ByteArray): TagData {
-        val version = (serviceData[0].toInt() and 0xF0) shr 4
-        val tagStateAndAdvertisementType = serviceData[0].toInt() and 15
-        val tagState = tagStateAndAdvertisementType and 7
-        val advertisementType = tagStateAndAdvertisementType shr 3 and 1
-        val agingCounter = serviceData[1].toInt() and 0xFF or
-                ((serviceData[2].toInt() and 0xFF) shl 8) or
-                ((serviceData[3].toInt() and 0xFF) shl 16)
-        val id = ByteArray(8).apply {
-            serviceData.copyInto(this, startIndex = 4, endIndex = 12)
-        }
-        val privacyId = id.toHexString()
-        val privId = Base64.encodeToString(id, Base64.NO_WRAP)
-        val regionId = (serviceData[12].toInt() and 0xF0) shr 4
-        val flags = serviceData[12].toInt() and 15
-        val uwbFlag = flags shr 2 and 1
-        val encryptionFlag = flags shr 3 and 1
-        val batteryLevel = flags and 3
-        val motionDetection = 1 and ((serviceData[13].toInt() and 0xFF) shr 7)
-        val reserved = ByteArray(2).apply {
-            serviceData.copyInto(this, startIndex = 14, endIndex = 16)
-        }
-        val activityTrackingMode = (serviceData[15].toInt() and 1) != 0
-        val signature = ByteArray(4).apply {
-            serviceData.copyInto(this, startIndex = 16, endIndex = 20)
-        }
-        return TagData(
-            serviceData = serviceData,
-            encodedServiceData = Base64.encodeToString(serviceData, Base64.NO_WRAP),
-            version = version,
-            advertisingType = advertisementType,
-            tagState = TagData.TagStateValue.getTagState(tagState),
-            privacyId = privacyId,
-            privId = privId,
-            region = ChaserRegion.getRegion(regionId),
-            batteryLevel = BatteryLevel.fromIntLevel(batteryLevel),
-            uwbFlag = uwbFlag == 1,
-            encryptionFlag = encryptionFlag == 1,
-            motionDetection = motionDetection == 1,
-            activityTrackingMode = activityTrackingMode,
-            signature = signature,
-            reserved = reserved,
-            agingCounter = agingCounter
-        )
+        return TagData(serviceData)
     }
 
     override fun clearKnownTags() {
+        serviceDataWriter.clear()
         scope.launch(Dispatchers.IO) {
             tagData.clear()
+            knownTagIndex.clear()
         }
     }
 
@@ -578,6 +572,218 @@ class SmartTagRepositoryImpl(
         }
     }
 
+    private class ServiceDataEntry(
+        val serviceData: ByteArray,
+        val bleMac: String?,
+        val timestamp: Long
+    ) {
+        private val tagData = TagData(serviceData)
+        val privacyId = tagData.packedPrivacyId
+        val tagState = tagData.tagState
+
+        /**
+         *  Whether this entry needs writing straight away rather than at the next flush, because
+         *  the Tag's state has changed or it has rotated its privacy ID or MAC.
+         */
+        fun isSignificantChange(previous: ServiceDataEntry): Boolean {
+            return bleMac != previous.bleMac || privacyId != previous.privacyId ||
+                    tagState != previous.tagState
+        }
+    }
+
+    /**
+     *  Write-behind buffer for service data. The latest entry for each Tag is held here and written
+     *  to the database every [serviceDataFlushInterval], unless it's a new Tag or a significant
+     *  change, which are written straight away. Readers use [KnownTagIndex], which already has
+     *  the latest entry, so only the database and other process see the delay.
+     */
+    private inner class ServiceDataWriter {
+
+        private val pending = ConcurrentHashMap<Int, ServiceDataEntry>()
+        private val writeLock = Mutex()
+        private val lastWritten = HashMap<Int, Long>()
+
+        fun write(deviceIdHash: Int, entry: ServiceDataEntry, previous: ServiceDataEntry?) {
+            if(previous == null || entry.isSignificantChange(previous)) {
+                pending.remove(deviceIdHash)
+                scope.launch {
+                    writeToDatabase(deviceIdHash, entry)
+                }
+            }else{
+                pending[deviceIdHash] = entry
+            }
+        }
+
+        fun clear() {
+            pending.clear()
+        }
+
+        private suspend fun flush() {
+            pending.keys.toList().forEach { deviceIdHash ->
+                val entry = pending.remove(deviceIdHash) ?: return@forEach
+                writeToDatabase(deviceIdHash, entry)
+            }
+        }
+
+        private suspend fun writeToDatabase(
+            deviceIdHash: Int,
+            entry: ServiceDataEntry
+        ) = writeLock.withLock {
+            //Skip if a newer entry has already been written
+            if((lastWritten[deviceIdHash] ?: 0L) > entry.timestamp) return@withLock
+            lastWritten[deviceIdHash] = entry.timestamp
+            withContext(Dispatchers.IO) {
+                val serviceData = EncryptedValue(entry.serviceData)
+                val bleMac = entry.bleMac?.toEncryptedValue()
+                val timestamp = entry.timestamp.toEncryptedValue()
+                val updated = if(bleMac != null) {
+                    tagData.updateServiceData(deviceIdHash, serviceData, bleMac, timestamp)
+                } else 0
+                if(updated == 0) {
+                    tagData.insert(
+                        CachedTagData(
+                            deviceIdHash,
+                            lastServiceData = serviceData,
+                            bleMac = bleMac,
+                            serviceDataTimestamp = timestamp
+                        )
+                    )
+                }
+            }
+        }
+
+        init {
+            scope.launch {
+                while(true) {
+                    delay(serviceDataFlushInterval)
+                    flush()
+                }
+            }
+        }
+
+    }
+
+    /**
+     *  In-memory index of the latest service data received for each of the user's Tags, by device
+     *  ID hash. It is updated directly when service data is received, and from the database when
+     *  the table changes (including from the other process). The privacy IDs of the latest
+     *  service data are kept as a sorted array, for [isKnownPrivacyId].
+     *
+     *  Entries are only removed by [clear], not when they are missing from the database, since
+     *  [ServiceDataWriter] may not have written them yet. Dropping them would make the user's own
+     *  Tags look unknown.
+     */
+    private inner class KnownTagIndex {
+
+        private val entries = ConcurrentHashMap<Int, ServiceDataEntry>()
+        private val privacyIdsLock = Any()
+        val knownPrivacyIds = MutableStateFlow<LongArray?>(null)
+
+        fun get(deviceIdHash: Int): ServiceDataEntry? {
+            return entries[deviceIdHash]
+        }
+
+        /**
+         *  Sets the latest [entry] for a Tag, returning the previous one
+         */
+        fun put(deviceIdHash: Int, entry: ServiceDataEntry): ServiceDataEntry? {
+            val previous = entries.put(deviceIdHash, entry)
+            if(previous?.privacyId != entry.privacyId) {
+                updateKnownPrivacyIds()
+            }
+            return previous
+        }
+
+        fun clear() {
+            entries.clear()
+            updateKnownPrivacyIds()
+        }
+
+        private fun onTagsChanged(tags: List<CachedTagData>) {
+            tags.forEach { tag ->
+                val serviceData = tag.lastServiceData?.bytes ?: return@forEach
+                val timestamp = tag.serviceDataTimestamp?.toLong() ?: 0L
+                val stored = ServiceDataEntry(
+                    serviceData,
+                    tag.bleMac?.let { String(it.bytes) },
+                    timestamp
+                )
+                //Keep the in-memory entry if it's newer than the stored one
+                entries.merge(tag.deviceIdHash, stored) { current, new ->
+                    if(current.timestamp >= new.timestamp) current else new
+                }
+            }
+            updateKnownPrivacyIds()
+        }
+
+        /**
+         *  Rebuilds the sorted privacy IDs. This is called from both the scan and database paths,
+         *  so is locked to stop an older rebuild being published after a newer one.
+         */
+        private fun updateKnownPrivacyIds() = synchronized(privacyIdsLock) {
+            knownPrivacyIds.value = entries.values.map { it.privacyId }.toLongArray().apply {
+                sort()
+            }
+        }
+
+        init {
+            scope.launch(Dispatchers.IO) {
+                tagData.getTags().collect {
+                    onTagsChanged(it)
+                }
+            }
+        }
+
+    }
+
+    /**
+     *  Collects location requests for multiple Tags which arrive within [LOCATION_BATCH_WINDOW]
+     *  of each other, and loads them with a single [ApiRepository.getLocations] call. Each caller
+     *  receives the result for its own Tag. The owner of each Tag is passed along, so shared Tags
+     *  can be decrypted with their owner's keys.
+     */
+    private inner class LocationBatcher {
+
+        private val lock = Mutex()
+        private val pending = HashMap<String, CompletableDeferred<GetLocationResult>>()
+        private val owners = HashMap<String, String>()
+        private var batchJob: Job? = null
+
+        suspend fun getLocation(deviceId: String, ownerId: String): GetLocationResult {
+            val request = lock.withLock {
+                if(batchJob == null) {
+                    batchJob = scope.launch {
+                        delay(LOCATION_BATCH_WINDOW)
+                        sendBatch()
+                    }
+                }
+                owners[deviceId] = ownerId
+                pending.getOrPut(deviceId) { CompletableDeferred() }
+            }
+            return request.await()
+        }
+
+        private suspend fun sendBatch() {
+            val (batch, batchOwners) = lock.withLock {
+                Pair(HashMap(pending), HashMap(owners)).also {
+                    pending.clear()
+                    owners.clear()
+                    batchJob = null
+                }
+            }
+            val results = try {
+                apiRepository.getLocations(batchOwners)
+            }catch (e: Exception) {
+                batch.values.forEach { it.completeExceptionally(e) }
+                return
+            }
+            batch.forEach { (deviceId, request) ->
+                request.complete(results[deviceId] ?: GetLocationResult.Error(1404, false))
+            }
+        }
+
+    }
+
     override fun onEncryptionFailed() {
         clearKnownTags()
     }
@@ -0,0 +1,159 @@
+package com.kieronquinn.app.utag.service
+
+import android.location.Location
+import com.kieronquinn.app.utag.repositories.EncryptedSettingsRepository.RefreshPeriod
+import com.kieronquinn.app.utag.repositories.EncryptedSettingsRepository.WidgetRefreshPeriod
+import java.time.Instant
+import java.time.ZoneId
+import java.time.ZonedDateTime
+
+/**
+ *  Decides when the location and widget refreshes in [UTagForegroundService] should next run.
+ *
+ *  While the device is stationary (the last location fixes are within [STATIONARY_DISTANCE] of
+ *  each other, and none of the user's Tags are reporting motion), the location refresh period is
+ *  doubled after each refresh, up to [MAX_STATIONARY_INTERVAL]. Any movement, or a Tag connecting
+ *  or disconnecting, resets it to the user's chosen period.
+ *
+ *  When the widget refresh is due within [FOLD_WINDOW] of the location refresh, it runs as part
+ *  of the location refresh rather than waking the device separately.
+ */
+class RefreshScheduler {
+
+    companion object {
+        private const val STATIONARY_DISTANCE = 100f // Metres
+        private const val MAX_STATIONARY_INTERVAL = 60 * 60_000L // 1 hour
+        private const val MAX_MULTIPLIER = 8
+        private const val FOLD_WINDOW = 5 * 60_000L // 5 minutes
+        private const val MAX_DECISIONS = 10
+    }
+
+    private val decisions = ArrayDeque<Decision>()
+    private var anchorLocation: Location? = null
+    private var multiplier = 1
+    private var lastChange = "Started"
+    private var pendingWidgetRefresh: Long? = null
+    private var handledWidgetRefresh: Long? = null
+
+    /**
+     *  Called after each location refresh with the location fix used (if any) and whether any of
+     *  the user's Tags reported they were moving. Locations are compared to the one from when the
+     *  device was last seen moving, so slow drift is still picked up.
+     */
+    @Synchronized
+    fun onLocationRefreshed(location: Location?, isTagMoving: Boolean) {
+        val anchor = anchorLocation
+        when {
+            isTagMoving -> reset("Tag motion detected", location)
+            location == null -> {
+                //Nothing to compare, keep the current period
+            }
+            anchor == null -> reset("No previous location", location)
+            location.distanceTo(anchor) > maxOf(STATIONARY_DISTANCE, location.accuracy) -> {
+                reset("Moved ${location.distanceTo(anchor).toInt()}m", location)
+            }
+            multiplier < MAX_MULTIPLIER -> {
+                multiplier *= 2
+                lastChange = "Stationary"
+            }
+        }
+    }
+
+    /**
+     *  Called when the location alarm fires. Returns whether the widget refresh was folded into
+     *  it, in which case the widgets should be refreshed too.
+     */
+    @Synchronized
+    fun onLocationAlarm(): Boolean {
+        val widgetRefresh = pendingWidgetRefresh ?: return false
+        handledWidgetRefresh = widgetRefresh
+        pendingWidgetRefresh = null
+        return true
+    }
+
+    /**
+     *  Called when a Tag which isn't in Passive Mode connects or disconnects, which means the user
+     *  has likely moved. Returns whether the period was reset, in which case the alarms should be
+     *  rescheduled.
+     */
+    @Synchronized
+    fun onTagConnectionChanged(): Boolean {
+        if(multiplier == 1) return false
+        reset("Tag connection changed", null)
+        return true
+    }
+
+    /**
+     *  Returns the times the location and widget alarms should be set for, either of which may be
+     *  `null` if that refresh is disabled. If the widget refresh has been folded into the
+     *  location refresh, [Decision.widgetTime] will be `null` and [Decision.isWidgetFolded] set.
+     */
+    @Synchronized
+    fun schedule(
+        locationPeriod: RefreshPeriod?,
+        widgetPeriod: WidgetRefreshPeriod?
+    ): Decision {
+        val now = ZonedDateTime.now()
+        val locationTime = locationPeriod?.getNextStretched(now)
+        //Skip the widget refresh which has already been run with a location refresh, if any
+        val widgetFrom = handledWidgetRefresh?.takeIf { it >= now.toEpochMilli() }?.let {
+            Instant.ofEpochMilli(it).atZone(ZoneId.systemDefault())
+        } ?: now
+        val widgetTime = widgetPeriod?.getNext(widgetFrom)?.toEpochMilli()
+        val isWidgetFolded = locationTime != null && widgetTime != null &&
+                widgetTime - locationTime in -FOLD_WINDOW..FOLD_WINDOW
+        pendingWidgetRefresh = widgetTime.takeIf { isWidgetFolded }
+        return Decision(
+            System.currentTimeMillis(),
+            locationTime,
+            widgetTime.takeUnless { isWidgetFolded },
+            isWidgetFolded,
+            multiplier,
+            lastChange
+        ).also {
+            decisions.addLast(it)
+            while(decisions.size > MAX_DECISIONS) {
+                decisions.removeFirst()
+            }
+        }
+    }
+
+    @Synchronized
+    fun getDecisions(): List<Decision> {
+        return decisions.toList()
+    }
+
+    private fun RefreshPeriod.getNextStretched(now: ZonedDateTime): Long? {
+        val interval = getInterval()?.toMillis() ?: return null
+        //Don't stretch beyond the maximum, or at all if the period is already longer
+        val maxMultiplier = (MAX_STATIONARY_INTERVAL / interval).toInt().coerceAtLeast(1)
+        val stretch = interval * (multiplier.coerceAtMost(maxMultiplier) - 1)
+        return getNext(now.plusNanos(stretch * 1_000_000L))?.toEpochMilli()
+    }
+
+    private fun reset(reason: String, location: Location?) {
+        multiplier = 1
+        lastChange = reason
+        anchorLocation = location ?: anchorLocation
+    }
+
+    private fun ZonedDateTime.toEpochMilli(): Long {
+        return toInstant().toEpochMilli()
+    }
+
+    data class Decision(
+        val time: Long,
+        val locationTime: Long?,
+        val widgetTime: Long?,
+        val isWidgetFolded: Boolean,
+        val multiplier: Int,
+        val reason: String
+    ) {
+        override fun toString(): String {
+            return "${Instant.ofEpochMilli(time)}: location ${locationTime?.let(Instant::ofEpochMilli)}" +
+                    " (x$multiplier, $reason), widget ${widgetTime?.let(Instant::ofEpochMilli)}" +
+                    if(isWidgetFolded) " (folded into location)" else ""
+        }
+    }
+
+}
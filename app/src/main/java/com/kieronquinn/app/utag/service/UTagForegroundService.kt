@@ -28,6 +28,7 @@ import com.kieronquinn.app.utag.components.bluetooth.BaseTagConnection
 import com.kieronquinn.app.utag.components.bluetooth.BaseTagConnection.SyncResult
 import com.kieronquinn.app.utag.components.bluetooth.ConnectedTagConnection
 import com.kieronquinn.app.utag.components.bluetooth.ConnectedTagConnection.TagConnectionState
+import com.kieronquinn.app.utag.components.bluetooth.LocationSyncSession
 import com.kieronquinn.app.utag.components.bluetooth.ScannedTagConnection
 import com.kieronquinn.app.utag.model.ButtonVolumeLevel
 import com.kieronquinn.app.utag.model.TagStateChangeEvent
@@ -71,10 +72,13 @@ import com.kieronquinn.app.utag.utils.extensions.bluetoothEnabledAsFlow
 import com.kieronquinn.app.utag.utils.extensions.broadcastReceiverAsFlow
 import com.kieronquinn.app.utag.utils.extensions.canScheduleExactAlarmsCompat
 import com.kieronquinn.app.utag.utils.extensions.firstNotNull
+import com.kieronquinn.app.utag.utils.extensions.getConnectionStats
 import com.kieronquinn.app.utag.utils.extensions.getDarkMode
 import com.kieronquinn.app.utag.utils.extensions.isServiceRunning
+import com.kieronquinn.app.utag.utils.extensions.setMaxRequestsPerHost
 import com.kieronquinn.app.utag.utils.extensions.startForeground
 import com.kieronquinn.app.utag.utils.extensions.suspendCancellableCoroutineWithTimeout
+import com.kieronquinn.app.utag.utils.extensions.warmUpConnections
 import com.kieronquinn.app.utag.utils.extensions.whenCreated
 import com.kieronquinn.app.utag.xposed.Xposed.Companion.ACTION_SMARTTHINGS_PAUSED
 import com.kieronquinn.app.utag.xposed.Xposed.Companion.ACTION_SMARTTHINGS_RESUMED
@@ -99,6 +103,9 @@ import com.samsung.android.oneconnect.smarttag.service.IGattRssiCallback
 import com.samsung.android.oneconnect.smarttag.service.ISmartTagStateCallback
 import com.samsung.android.oneconnect.smarttag.service.ISmartTagSupportService
 import kotlinx.coroutines.Job
+import kotlinx.coroutines.async
+import kotlinx.coroutines.awaitAll
+import kotlinx.coroutines.coroutineScope
 import kotlinx.coroutines.delay
 import kotlinx.coroutines.flow.MutableStateFlow
 import kotlinx.coroutines.flow.SharingStarted
@@ -114,6 +121,7 @@ import kotlinx.coroutines.launch
 import kotlinx.coroutines.runBlocking
 import kotlinx.coroutines.sync.Mutex
 import kotlinx.coroutines.sync.withLock
+import kotlinx.coroutines.withTimeoutOrNull
 import org.koin.android.ext.android.inject
 import java.io.FileDescriptor
 import java.io.PrintWriter
@@ -127,8 +135,12 @@ class UTagForegroundService: LifecycleService() {
 
     companion object {
         private const val CONNECT_TIMEOUT = 10_000L
+        //Battery read (including a retry after 15s), location & upload for a single Tag
+        private const val TAG_SYNC_TIMEOUT = 45_000L
         private const val DISCONNECT_NOTIFICATION_DELAY = 180_000L // 3 minutes
         private const val MIN_RSSI_FOR_OVERMATURE_UPDATE = -75
+        //How long a Tag advertising motion counts as moving, if no newer advertisement is seen
+        private const val TAG_MOTION_MAX_AGE = 5 * 60_000L // 5 minutes
 
         private const val ACTION_START_SMARTTAG_SERVICE =
             "com.samsung.android.oneconnect.smarttag.START_SMARTTAG_SUPPORT_SERVICE"
@@ -237,10 +249,14 @@ class UTagForegroundService: LifecycleService() {
     private var isDisconnecting = false
     private var isSettingUpSafeAreas = false
     private var notificationHash: Int? = null
+    private var lastLocationSync: LocationSyncSession.Summary? = null
+    private val refreshScheduler = RefreshScheduler()
+    private val scheduleLock = Mutex()
 
     private val tagStateChangeBus = MutableStateFlow(System.currentTimeMillis())
     private val safeAreaSetupBus = MutableStateFlow(System.currentTimeMillis())
     private val tagStates = ConcurrentHashMap<String, TagConnectionState>()
+    private val tagMotionTimes = ConcurrentHashMap<String, Long>()
     private val tagConnections = ConcurrentHashMap<String, BaseTagConnection>()
     private val tagStateCallbacks = ConcurrentHashMap<String, ITagStateCallback>()
     private val tagStatusCallbacks = ConcurrentHashMap<String, ITagStatusCallback>()
@@ -376,6 +392,13 @@ class UTagForegroundService: LifecycleService() {
             log("$deviceId -> $tagState")
             var shouldShowDisconnectNotification = false
             val isPassive = passiveModeRepository.isInPassiveMode(deviceId, true)
+            //Only a Tag actually connecting or disconnecting means the user has likely moved
+            //Passive Mode Tags are skipped, since they only connect briefly for overmature updates
+            val wasConnected = tagStates[deviceId] == TagConnectionState.D2D_CONNECTED
+            val isConnected = tagState == TagConnectionState.D2D_CONNECTED
+            if(!isPassive && wasConnected != isConnected && refreshScheduler.onTagConnectionChanged()) {
+                scheduleAlarms()
+            }
             when(tagState) {
                 TagConnectionState.D2D_CONNECTED -> {
                     if (tagConnections[deviceId] !is ConnectedTagConnection) {
@@ -504,6 +527,7 @@ class UTagForegroundService: LifecycleService() {
             setupNotificationForceUpdates()
             setupLocationRefreshPeriod()
             setupWidgetRefreshPeriod()
+            warmUpConnections(smartThingsRepository.userAgent)
         } else {
             //Can't start foreground, battery optimisation probably needs disabling
             notifications.showNotification(
@@ -543,6 +567,15 @@ class UTagForegroundService: LifecycleService() {
             tagStates.forEach { (t, u) ->
                 it.write("$t: $u\n")
             }
+            it.write("\n")
+            it.write("Scan queue: ${nonOwnerRepository.getScanQueueStats()}\n")
+            it.write("Last location sync: $lastLocationSync\n")
+            it.write("\n")
+            it.write("Refresh schedule:\n")
+            refreshScheduler.getDecisions().forEach { decision ->
+                it.write("$decision\n")
+            }
+            it.write("HTTP connections: ${getConnectionStats()}\n")
         }
     }
 
@@ -644,6 +677,11 @@ class UTagForegroundService: LifecycleService() {
             val tagData = smartTagRepository.decodeServiceData(serviceData)
             log("Received tag scan for $deviceId, mac is now $bleMac with RSSI $rssi, privacy ID ${tagData.privacyId}")
             smartTagRepository.cacheServiceData(deviceId, serviceData, bleMac)
+            if(tagData.motionDetection) {
+                tagMotionTimes[deviceId] = System.currentTimeMillis()
+            }else{
+                tagMotionTimes.remove(deviceId)
+            }
             if(!overmatureOfflinePreventionEnabled.firstNotNull()) return@collect
             if(tagData.tagState.shouldPreventOvermatureOffline() && rssi >= MIN_RSSI_FOR_OVERMATURE_UPDATE) {
                 log("Start preventing overmature offline for $deviceId")
@@ -1059,13 +1097,13 @@ class UTagForegroundService: LifecycleService() {
 
     private fun setupLocationRefreshPeriod() = whenCreated {
         locationRefreshPeriod.collect {
-            scheduleLocationAlarm()
+            scheduleAlarms()
         }
     }
 
     private fun setupWidgetRefreshPeriod() = whenCreated {
         widgetRefreshPeriod.collect {
-            scheduleWidgetAlarm()
+            scheduleAlarms()
         }
     }
 
@@ -1484,54 +1522,59 @@ class UTagForegroundService: LifecycleService() {
         //Don't wait for the connect, this will be called again if the Tag pings again
     }
 
+    /**
+     *  Schedules the location and widget alarms, using [refreshScheduler] to stretch the location
+     *  period while the device is stationary and fold the widget refresh into the location refresh
+     *  when they're due at around the same time.
+     */
     @SuppressLint("ScheduleExactAlarm")
-    private fun scheduleLocationAlarm() = whenCreated {
-        log("Cancelling location alarm")
-        alarmManager.cancel(locationServicePendingIntent)
-        //Don't prompt user if the refresh period is disabled
-        val next = locationRefreshPeriod.firstNotNull().getNext() ?: return@whenCreated
-        //Disabled if not overridden, will be re-scheduled when saver is disabled
-        if(powerManager.isPowerSaveMode && !locationOnBatterySaver.get()) return@whenCreated
-        //Should never happen unless the user manages to revoke while running
-        if(!alarmManager.canScheduleExactAlarmsCompat()) return@whenCreated
-        log("Next location refresh: ${locationRefreshPeriod.value?.getNext()}")
-        alarmManager.setExactAndAllowWhileIdle(
-            AlarmManager.RTC,
-            next.toInstant().toEpochMilli(),
-            locationServicePendingIntent
-        )
-    }
-
-    @SuppressLint("ScheduleExactAlarm")
-    private fun scheduleWidgetAlarm() = whenCreated {
-        log("Cancelling widget alarm")
-        alarmManager.cancel(widgetServicePendingIntent)
-        //Don't prompt user if the refresh period is disabled
-        val next = widgetRefreshPeriod.firstNotNull().getNext() ?: return@whenCreated
-        //Disabled if not overridden, will be re-scheduled when saver is disabled
-        if(powerManager.isPowerSaveMode && !widgetOnBatterySaver.get()) return@whenCreated
-        //Should never happen unless the user manages to revoke while running
-        if(!alarmManager.canScheduleExactAlarmsCompat()) return@whenCreated
-        log("Next widget refresh: ${widgetRefreshPeriod.value?.getNext()}")
-        alarmManager.setExactAndAllowWhileIdle(
-            AlarmManager.RTC,
-            next.toInstant().toEpochMilli(),
-            widgetServicePendingIntent
-        )
+    private fun scheduleAlarms() = whenCreated {
+        scheduleLock.withLock {
+            log("Cancelling location & widget alarms")
+            alarmManager.cancel(locationServicePendingIntent)
+            alarmManager.cancel(widgetServicePendingIntent)
+            //Should never happen unless the user manages to revoke while running
+            if(!alarmManager.canScheduleExactAlarmsCompat()) return@whenCreated
+            //Disabled if not overridden, will be re-scheduled when saver is disabled
+            val locationPeriod = locationRefreshPeriod.firstNotNull().takeUnless {
+                powerManager.isPowerSaveMode && !locationOnBatterySaver.get()
+            }
+            val widgetPeriod = widgetRefreshPeriod.firstNotNull().takeUnless {
+                powerManager.isPowerSaveMode && !widgetOnBatterySaver.get()
+            }
+            val decision = refreshScheduler.schedule(locationPeriod, widgetPeriod)
+            log("Refresh schedule: $decision")
+            decision.locationTime?.let {
+                alarmManager.setExactAndAllowWhileIdle(
+                    AlarmManager.RTC,
+                    it,
+                    locationServicePendingIntent
+                )
+            }
+            decision.widgetTime?.let {
+                alarmManager.setExactAndAllowWhileIdle(
+                    AlarmManager.RTC,
+                    it,
+                    widgetServicePendingIntent
+                )
+            }
+        }
     }
 
     private fun locateAndScheduleNext() = whenCreated {
-        scheduleLocationAlarm()
-        val results = ArrayList<SyncResult>()
-        val tagConnectionIterator = tagConnections.values.iterator()
-        tagConnectionIterator.forEach {
-            it.syncLocationAndWait(false).also { result ->
-                results.add(result)
-                log("Sync result for ${it.deviceId}: $result")
-            }
-        }
+        val shouldRefreshWidgets = refreshScheduler.onLocationAlarm()
+        scheduleAlarms()
+        if(shouldRefreshWidgets) {
+            updateAllWidgets()
+        }
+        val summary = syncLocations()
+        lastLocationSync = summary
+        log("Location sync: $summary")
+        refreshScheduler.onLocationRefreshed(summary.location, isTagMoving())
+        //Reschedule now the scheduler knows whether the device has moved
+        scheduleAlarms()
         nonOwnerRepository.onLocationUpdate()
-        if(results.any { it == SyncResult.SUCCESS }) {
+        if(summary.successCount > 0) {
             //Update widgets & main UI
             SmartTagRepository.refreshTagStates(this@UTagForegroundService)
             historyWidgetRepository.updateWidgets()
@@ -1542,8 +1585,43 @@ class UTagForegroundService: LifecycleService() {
         }
     }
 
+    /**
+     *  Syncs the location of all Tags at the same time, sharing a single location fix between
+     *  them. Each Tag has its own timeout, so one slow Tag doesn't hold up the rest, and requests
+     *  per host are raised to the number of Tags so they aren't queued behind each other.
+     */
+    private suspend fun syncLocations() = coroutineScope {
+        val session = LocationSyncSession()
+        val connections = tagConnections.values.toList()
+        setMaxRequestsPerHost(connections.size)
+        val results = connections.map { connection ->
+            async {
+                val result = withTimeoutOrNull(TAG_SYNC_TIMEOUT) {
+                    connection.syncLocationAndWait(false, session)
+                } ?: SyncResult.FAILED_TIMEOUT
+                log("Sync result for ${connection.deviceId}: $result")
+                Pair(connection.deviceId, result)
+            }
+        }.awaitAll().toMap()
+        session.getSummary(results)
+    }
+
+    /**
+     *  Whether any of the user's Tags last advertised that they were moving, from the live scans
+     *  rather than the cached service data. Advertisements older than [TAG_MOTION_MAX_AGE] are
+     *  ignored, so a Tag which stopped being seen while moving doesn't hold the period down.
+     */
+    private fun isTagMoving(): Boolean {
+        val cutoff = System.currentTimeMillis() - TAG_MOTION_MAX_AGE
+        return tagMotionTimes.values.any { it >= cutoff }
+    }
+
     private fun refreshWidgetAndScheduleNext() = whenCreated {
-        scheduleWidgetAlarm()
+        scheduleAlarms()
+        updateAllWidgets()
+    }
+
+    private suspend fun updateAllWidgets() {
         if(widgetRepository.hasWidgets().first()) {
             widgetRepository.updateWidgets()
         }
@@ -275,7 +275,10 @@ class TagLocationHistoryFragment: BoundFragment<FragmentTagLocationHistoryBindin
     }
 
     private fun updateMenu() {
-        menu?.setVisible(viewModel.state.value.showMenu())
+        val state = viewModel.state.value
+        menu?.setVisible(state.showMenu())
+        menu?.findItem(R.id.menu_location_history_export)?.isEnabled =
+            (state as? State.Loaded)?.isPartial != true
     }
 
     private fun setupInsets() = with(binding) {
@@ -694,6 +697,7 @@ class TagLocationHistoryFragment: BoundFragment<FragmentTagLocationHistoryBindin
 
     private fun showExportDialog() {
         val state = viewModel.state.value as? State.Loaded ?: return
+        if(state.isPartial) return
         val filename = state.getFilename() ?: run {
             Toast.makeText(
                 requireContext(),
@@ -29,11 +29,11 @@ import kotlinx.coroutines.flow.MutableSharedFlow
 import kotlinx.coroutines.flow.MutableStateFlow
 import kotlinx.coroutines.flow.SharingStarted
 import kotlinx.coroutines.flow.StateFlow
+import kotlinx.coroutines.flow.channelFlow
 import kotlinx.coroutines.flow.combine
 import kotlinx.coroutines.flow.filterNotNull
 import kotlinx.coroutines.flow.flatMapLatest
 import kotlinx.coroutines.flow.flattenConcat
-import kotlinx.coroutines.flow.flow
 import kotlinx.coroutines.flow.flowOf
 import kotlinx.coroutines.flow.flowOn
 import kotlinx.coroutines.flow.mapLatest
@@ -85,6 +85,8 @@ abstract class TagLocationHistoryViewModel: ViewModel() {
             val decryptFailed: Boolean,
             val mapOptions: MapOptions,
             val exportLocations: List<ExportLocation>,
+            //Addresses are still loading, so the history can't be exported yet
+            val isPartial: Boolean,
             override val selectedDate: LocalDateTime,
             override val previousEnabled: Boolean,
             override val nextEnabled: Boolean,
@@ -205,15 +207,20 @@ class TagLocationHistoryViewModelImpl(
     }
 
     private val fullHistory = refreshBus.flatMapLatest {
-        flow {
-            emit(HistoryState.Loading(deviceId, progress = 0))
-            val result = locationHistoryRepository.getLocationHistory(deviceId) {
-                emit(HistoryState.Loading(deviceId, progress = it))
+        channelFlow {
+            send(HistoryState.Loading(deviceId, progress = 0))
+            val result = locationHistoryRepository.getLocationHistory(
+                deviceId,
+                onPartialResult = { send(it) }
+            ) {
+                send(HistoryState.Loading(deviceId, progress = it))
             }
-            emit(result)
+            send(result)
         }
     }.flowOn(Dispatchers.IO).onEach {
-        if(pinState == PinState.WAITING) {
+        //Only the final result reflects the entered PIN, partial results may be followed by more
+        val isFinal = it !is HistoryState.Loading && (it as? HistoryState.Loaded)?.isPartial != true
+        if(isFinal && pinState == PinState.WAITING) {
             pinState = PinState.IDLE
         }
     }
@@ -296,7 +303,8 @@ class TagLocationHistoryViewModelImpl(
             insets = insets,
             decryptFailed = history.decryptFailed,
             mapOptions = mapOptions,
-            exportLocations = history.exportLocations
+            exportLocations = history.exportLocations,
+            isPartial = history.isPartial
         )
     }.flowOn(Dispatchers.IO).stateIn(
         viewModelScope,
@@ -386,6 +394,7 @@ class TagLocationHistoryViewModelImpl(
                 return@launch
             }
             if(apiRepository.deleteLocationHistory(deviceId)) {
+                locationHistoryRepository.clearLocalHistory(deviceId)
                 refreshBus.emit(System.currentTimeMillis())
             }else{
                 event.emit(Event.DELETE_FAILED)
@@ -430,6 +439,7 @@ class TagLocationHistoryViewModelImpl(
 
     override fun onExportUriResult(uri: Uri) {
         val state = state.value as? State.Loaded ?: return
+        if(state.isPartial) return
         viewModelScope.launch {
             //Don't export in content creator mode
             if(contentCreatorRepository.isEnabled()) {
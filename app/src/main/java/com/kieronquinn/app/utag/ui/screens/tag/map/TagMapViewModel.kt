@@ -735,7 +735,7 @@ class TagMapViewModelImpl(
                 smartTagRepository.refreshTagStates()
                 historyWidgetRepository.updateWidgets()
             }
-            SyncResult.FAILED_TO_CONNECT, SyncResult.FAILED_DISCONNECTED -> {
+            SyncResult.FAILED_TO_CONNECT, SyncResult.FAILED_DISCONNECTED, SyncResult.FAILED_TIMEOUT -> {
                 if(notifyIfFailed) {
                     events.emit(Event.FailedToRefresh(deviceLabel))
                 }
@@ -15,7 +15,6 @@ import com.kieronquinn.app.utag.utils.extensions.groupConsecutiveBy
 import kotlinx.coroutines.flow.SharingStarted
 import kotlinx.coroutines.flow.StateFlow
 import kotlinx.coroutines.flow.combine
-import kotlinx.coroutines.flow.map
 import kotlinx.coroutines.flow.mapLatest
 import kotlinx.coroutines.flow.stateIn
 import kotlinx.coroutines.launch
@@ -63,9 +62,7 @@ class UnknownTagViewModelImpl(
         nonOwnerTagRepository.acknowledgeUnknownTag(privacyId)
     }
 
-    private val tag = nonOwnerTagRepository.getUnknownTags().map {
-        it.firstOrNull { tag -> tag.privacyId == privacyId }
-    }
+    private val tag = nonOwnerTagRepository.getUnknownTag(privacyId)
 
     private val locations = tag.mapLatest {
         if(it == null) return@mapLatest null
@@ -0,0 +1,108 @@
+package com.kieronquinn.app.utag.utils
+
+import android.util.Log
+import com.kieronquinn.app.utag.BuildConfig
+import java.lang.reflect.Method
+import java.util.concurrent.ConcurrentHashMap
+import kotlin.reflect.KClass
+import kotlin.reflect.KProperty1
+import kotlin.reflect.KVisibility
+import kotlin.reflect.full.memberProperties
+import kotlin.reflect.jvm.isAccessible
+import kotlin.reflect.jvm.javaGetter
+
+/**
+ *  Checks deserialised objects for fields which are marked as not-null, but are null. This can
+ *  happen when Gson loads JSON which was written by an older version of a model.
+ *
+ *  Inspecting a class with Kotlin reflection is slow, so this is only done once per class, to
+ *  build a list of getters to check. Later checks for the same class just call the getters.
+ */
+object CacheValidator {
+
+    private val plans = ConcurrentHashMap<Class<*>, List<FieldCheck>>()
+
+    /**
+     *  Recursively checks data class fields for [value], making sure any fields that are marked
+     *  as not-null are not null.
+     */
+    fun isValid(value: Any): Boolean {
+        return getPlan(value::class).all { it.isValid(value) }
+    }
+
+    private fun getPlan(clazz: KClass<*>): List<FieldCheck> {
+        return plans.getOrPut(clazz.java) {
+            createPlan(clazz)
+        }
+    }
+
+    private fun createPlan(clazz: KClass<*>): List<FieldCheck> {
+        return clazz.memberProperties.filter { it.visibility == KVisibility.PUBLIC }.map {
+            FieldCheck(
+                name = it.name,
+                getter = Getter.create(it),
+                isNullable = it.returnType.isMarkedNullable,
+                isData = (it.returnType.classifier as? KClass<*>)?.isData == true
+            )
+        }
+    }
+
+    private class FieldCheck(
+        val name: String,
+        val getter: Getter,
+        val isNullable: Boolean,
+        val isData: Boolean
+    ) {
+
+        fun isValid(owner: Any): Boolean {
+            val value = getter.get(owner)
+            if(!isNullable && value == null) {
+                if(BuildConfig.DEBUG) {
+                    Log.e("uCache", "Field $name is not marked nullable but is null!")
+                }
+                return false
+            }
+            if(isData && value != null && !CacheValidator.isValid(value)) {
+                return false
+            }
+            return true
+        }
+
+    }
+
+    /**
+     *  Uses the Java getter where there is one, since calling it does not go through Kotlin
+     *  reflection. Falls back to the Kotlin property otherwise.
+     */
+    private sealed class Getter {
+
+        companion object {
+            fun create(property: KProperty1<out Any, *>): Getter {
+                val javaGetter = property.javaGetter?.apply {
+                    isAccessible = true
+                }
+                return if(javaGetter != null) {
+                    JavaGetter(javaGetter)
+                }else{
+                    KotlinGetter(property.apply { isAccessible = true })
+                }
+            }
+        }
+
+        abstract fun get(owner: Any): Any?
+
+        class JavaGetter(private val method: Method): Getter() {
+            override fun get(owner: Any): Any? {
+                return method.invoke(owner)
+            }
+        }
+
+        class KotlinGetter(private val property: KProperty1<out Any, *>): Getter() {
+            override fun get(owner: Any): Any? {
+                return property.getter.call(owner)
+            }
+        }
+
+    }
+
+}
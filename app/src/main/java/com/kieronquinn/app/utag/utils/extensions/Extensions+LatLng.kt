@@ -5,6 +5,7 @@ import android.location.LocationManager
 import com.google.android.gms.maps.model.LatLng
 
 private const val GEOCODING_ROUND_TO = 4
+private const val GEOCODING_CELL_SCALE = 10_000.0
 
 /**
  *  When Geocoding, we commit the resulting address to an encrypted database to save on network
@@ -20,6 +21,17 @@ fun LatLng.roundForGeocoding(): LatLng {
     )
 }
 
+/**
+ *  Returns the geocoding cell this LatLng falls in, which is the same rounding as
+ *  [roundForGeocoding] but packed into a [Long] so it can be used as a key without collisions.
+ *  The upper 32 bits hold the latitude cell, and the lower 32 bits the longitude cell.
+ */
+fun LatLng.toGeocodingCell(): Long {
+    val latitudeCell = Math.round(latitude * GEOCODING_CELL_SCALE)
+    val longitudeCell = Math.round(longitude * GEOCODING_CELL_SCALE)
+    return (latitudeCell shl 32) or (longitudeCell and 0xFFFFFFFFL)
+}
+
 fun LatLng.toLocation(): Location {
     return Location(LocationManager.GPS_PROVIDER).apply {
         latitude = this@toLocation.latitude
@@ -5,20 +5,177 @@ import com.kieronquinn.app.utag.networking.interceptors.DefaultUserAgentIntercep
 import com.kieronquinn.app.utag.networking.interceptors.FindAuthInterceptor
 import com.kieronquinn.app.utag.networking.interceptors.OspInterceptor
 import com.kieronquinn.app.utag.networking.interceptors.SmartThingsAuthInterceptor
+import okhttp3.Call
+import okhttp3.Callback
+import okhttp3.Connection
+import okhttp3.ConnectionPool
+import okhttp3.Dispatcher
+import okhttp3.EventListener
 import okhttp3.OkHttpClient
+import okhttp3.Protocol
+import okhttp3.Request
+import okhttp3.Response
+import java.io.IOException
+import java.net.InetSocketAddress
+import java.net.Proxy
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicLong
 
-fun smartThingsClient(context: Context, updateBody: Boolean = false): OkHttpClient = OkHttpClient.Builder()
+private const val MAX_REQUESTS = 64
+private const val DEFAULT_MAX_REQUESTS_PER_HOST = 8
+private const val MAX_IDLE_CONNECTIONS = 8
+private const val KEEP_ALIVE_DURATION = 5L //Minutes
+private const val HEADER_USER_AGENT = "User-Agent"
+
+/**
+ *  Hosts which are connected to on most location refreshes, so connections are opened to them
+ *  when the foreground service starts by [warmUpConnections]. SmartThings hosts are sent the
+ *  SmartThings User Agent, the same as [smartThingsClient].
+ */
+private val SMARTTHINGS_WARM_UP_URLS = listOf(
+    "https://client.smartthings.com/",
+    "https://api.smartthings.com/"
+)
+
+/**
+ *  As above, for [findClient], which uses the default User Agent
+ */
+private val FIND_WARM_UP_URLS = listOf(
+    "https://api.samsungfind.com/"
+)
+
+private val connectionStats = ConnectionStatsListener()
+
+/**
+ *  Shared client which all other clients are derived from via [OkHttpClient.newBuilder], so they
+ *  all share the same connection pool and dispatcher. This means TLS sessions and HTTP/2
+ *  connections are reused between services, rather than each service opening its own.
+ */
+private val sharedHttpClient by lazy {
+    OkHttpClient.Builder()
+        .connectionPool(ConnectionPool(MAX_IDLE_CONNECTIONS, KEEP_ALIVE_DURATION, TimeUnit.MINUTES))
+        .dispatcher(Dispatcher().apply {
+            maxRequests = MAX_REQUESTS
+            maxRequestsPerHost = DEFAULT_MAX_REQUESTS_PER_HOST
+        })
+        .eventListener(connectionStats)
+        .build()
+}
+
+fun sharedClient(): OkHttpClient = sharedHttpClient
+
+fun smartThingsClient(context: Context, updateBody: Boolean = false): OkHttpClient = sharedHttpClient.newBuilder()
     .addInterceptor(SmartThingsAuthInterceptor(context, updateBody))
     .build()
 
-fun findClient(context: Context): OkHttpClient = OkHttpClient.Builder()
+fun findClient(context: Context): OkHttpClient = sharedHttpClient.newBuilder()
     .addInterceptor(FindAuthInterceptor(context))
     .build()
 
-fun defaultUserAgentClient(): OkHttpClient = OkHttpClient.Builder()
+fun defaultUserAgentClient(): OkHttpClient = sharedHttpClient.newBuilder()
     .addInterceptor(DefaultUserAgentInterceptor())
     .build()
 
-fun ospClient(): OkHttpClient = OkHttpClient.Builder()
+fun ospClient(): OkHttpClient = sharedHttpClient.newBuilder()
     .addInterceptor(OspInterceptor())
-    .build()
\ No newline at end of file
+    .build()
+
+/**
+ *  Sets the maximum number of concurrent requests to each host, across all clients, so that at
+ *  least [requests] can run at once. This is never set below the default, or above the overall
+ *  maximum.
+ */
+fun setMaxRequestsPerHost(requests: Int) {
+    val dispatcher = sharedHttpClient.dispatcher
+    val maxRequestsPerHost = requests.coerceIn(DEFAULT_MAX_REQUESTS_PER_HOST, MAX_REQUESTS)
+    if(dispatcher.maxRequestsPerHost != maxRequestsPerHost) {
+        dispatcher.maxRequestsPerHost = maxRequestsPerHost
+    }
+}
+
+/**
+ *  Opens connections to the most used hosts in the background, so the first requests of a
+ *  location refresh don't have to wait for the TLS handshake. No credentials are sent, the
+ *  responses are ignored. Each host is sent the same User Agent as the app's other requests to it.
+ */
+fun warmUpConnections(smartThingsUserAgent: String) {
+    SMARTTHINGS_WARM_UP_URLS.forEach { url ->
+        warmUpConnection(url, smartThingsUserAgent)
+    }
+    FIND_WARM_UP_URLS.forEach { url ->
+        warmUpConnection(url, null)
+    }
+}
+
+private fun warmUpConnection(url: String, userAgent: String?) {
+    val request = Request.Builder().url(url).head().apply {
+        userAgent?.let { header(HEADER_USER_AGENT, it) }
+    }.build()
+    sharedHttpClient.newCall(request).enqueue(object: Callback {
+        override fun onResponse(call: Call, response: Response) {
+            response.close()
+        }
+
+        override fun onFailure(call: Call, e: IOException) {
+            //Not required, the connection will be made when needed
+        }
+    })
+}
+
+fun getConnectionStats(): ConnectionStats {
+    return connectionStats.getStats(sharedHttpClient.connectionPool)
+}
+
+data class ConnectionStats(
+    val connectionsAcquired: Long,
+    val connectionsOpened: Long,
+    val connectionsFailed: Long,
+    val idleConnections: Int,
+    val totalConnections: Int
+) {
+    val connectionsReused = (connectionsAcquired - connectionsOpened).coerceAtLeast(0)
+}
+
+/**
+ *  Counts connections acquired by calls, and how many of those needed a new connection
+ */
+private class ConnectionStatsListener: EventListener() {
+
+    private val acquired = AtomicLong()
+    private val opened = AtomicLong()
+    private val failed = AtomicLong()
+
+    override fun connectEnd(
+        call: Call,
+        inetSocketAddress: InetSocketAddress,
+        proxy: Proxy,
+        protocol: Protocol?
+    ) {
+        opened.incrementAndGet()
+    }
+
+    override fun connectFailed(
+        call: Call,
+        inetSocketAddress: InetSocketAddress,
+        proxy: Proxy,
+        protocol: Protocol?,
+        ioe: IOException
+    ) {
+        failed.incrementAndGet()
+    }
+
+    override fun connectionAcquired(call: Call, connection: Connection) {
+        acquired.incrementAndGet()
+    }
+
+    fun getStats(pool: ConnectionPool): ConnectionStats {
+        return ConnectionStats(
+            acquired.get(),
+            opened.get(),
+            failed.get(),
+            pool.idleConnectionCount(),
+            pool.connectionCount()
+        )
+    }
+
+}
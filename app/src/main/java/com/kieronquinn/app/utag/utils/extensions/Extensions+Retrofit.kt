@@ -10,7 +10,6 @@ import com.kieronquinn.app.utag.repositories.NotificationRepository
 import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.withContext
 import okhttp3.Cache
-import okhttp3.OkHttpClient
 import org.koin.java.KoinJavaComponent.inject
 import retrofit2.Call
 import retrofit2.Response
@@ -106,5 +105,5 @@ private const val CACHE_SIZE = 10 * 1024 * 1024 // 10 MB
 
 fun Retrofit.Builder.withCache(context: Context): Retrofit.Builder {
     val cache = Cache(context.cacheDir, CACHE_SIZE.toLong())
-    return client(OkHttpClient.Builder().cache(cache).build())
+    return client(sharedClient().newBuilder().cache(cache).build())
 }
\ No newline at end of file
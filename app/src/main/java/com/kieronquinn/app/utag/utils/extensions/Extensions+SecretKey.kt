@@ -0,0 +1,40 @@
+package com.kieronquinn.app.utag.utils.extensions
+
+import javax.crypto.Mac
+import javax.crypto.SecretKey
+import javax.crypto.spec.SecretKeySpec
+
+private const val LOOKUP_KEY_ALGORITHM = "HmacSHA256"
+private const val LOOKUP_KEY_SEPARATOR = 0
+private const val LOOKUP_KEY_INFO = "lookup-key"
+
+/**
+ *  Derives a separate key for creating lookup keys from this encryption key, as
+ *  HMAC-SHA256(key, "lookup-key"), so the same key is never used for both encryption and MACs.
+ */
+fun SecretKey.deriveLookupKey(): SecretKey {
+    val mac = Mac.getInstance(LOOKUP_KEY_ALGORITHM).apply {
+        init(SecretKeySpec(encoded, LOOKUP_KEY_ALGORITHM))
+    }
+    return SecretKeySpec(mac.doFinal(LOOKUP_KEY_INFO.toByteArray()), LOOKUP_KEY_ALGORITHM)
+}
+
+/**
+ *  Creates a deterministic lookup key for the given [parts], using HMAC-SHA256 keyed with this
+ *  key. The resulting hex string does not reveal the parts, but will always be the same for the
+ *  same inputs, so can be used as an indexed column in place of encrypted values. This should
+ *  only be called on a key from [deriveLookupKey], never on an encryption key directly.
+ */
+@OptIn(ExperimentalStdlibApi::class)
+fun SecretKey.createLookupKey(vararg parts: String): String {
+    val mac = Mac.getInstance(LOOKUP_KEY_ALGORITHM).apply {
+        init(SecretKeySpec(encoded, LOOKUP_KEY_ALGORITHM))
+    }
+    parts.forEachIndexed { index, part ->
+        if(index > 0) {
+            mac.update(LOOKUP_KEY_SEPARATOR.toByte())
+        }
+        mac.update(part.toByteArray())
+    }
+    return mac.doFinal().toHexString()
+}
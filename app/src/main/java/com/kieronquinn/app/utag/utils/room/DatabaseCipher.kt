@@ -0,0 +1,48 @@
+package com.kieronquinn.app.utag.utils.room
+
+import javax.crypto.Cipher
+import javax.crypto.SecretKey
+import javax.crypto.spec.IvParameterSpec
+
+/**
+ *  Encrypts and decrypts database values with a fixed key and IV. [Cipher] is not thread safe, so
+ *  each thread gets its own initialised instance, rather than sharing one behind a lock. Since
+ *  Room runs queries on many threads at once, this allows large loads to run in parallel.
+ */
+class DatabaseCipher(
+    private val transformation: String,
+    private val key: () -> SecretKey,
+    private val iv: () -> IvParameterSpec
+) {
+
+    private val encryptionCipher = ThreadLocal.withInitial {
+        createCipher(Cipher.ENCRYPT_MODE)
+    }
+
+    private val decryptionCipher = ThreadLocal.withInitial {
+        createCipher(Cipher.DECRYPT_MODE)
+    }
+
+    fun encrypt(value: ByteArray): ByteArray {
+        return encryptionCipher.get()!!.doFinal(value)
+    }
+
+    /**
+     *  Decrypts [value], returning `null` if it can't be decrypted (for example if the key has
+     *  changed)
+     */
+    fun decryptOrNull(value: ByteArray): ByteArray? {
+        return try {
+            decryptionCipher.get()!!.doFinal(value)
+        }catch (e: Exception) {
+            null
+        }
+    }
+
+    private fun createCipher(mode: Int): Cipher {
+        return Cipher.getInstance(transformation).apply {
+            init(mode, key(), iv())
+        }
+    }
+
+}
@@ -27,8 +27,10 @@ import android.content.pm.ApplicationInfo
 import android.content.pm.PackageInfo
 import android.content.pm.PackageManager.NameNotFoundException
 import android.os.Bundle
+import android.os.Handler
 import android.os.IBinder
 import android.os.IBinder.DeathRecipient
+import android.os.Looper
 import android.os.ParcelUuid
 import android.webkit.WebView
 import android.webkit.WebViewClient
@@ -136,6 +138,9 @@ class Xposed: IXposedHookLoadPackage {
         private val HOOK_CLASS_NAMES = setOf("LSPHooker_", "Vector_")
 
         private const val LOCATION_TIMEOUT = 30_000L //30 seconds
+        //How often batched scan results are sent to uTag, or how many are sent at once if sooner
+        private const val SCAN_BATCH_INTERVAL = 1_000L
+        private const val SCAN_BATCH_SIZE = 32
         //Last version before lockups started
         private const val PLATFORM_VERSION_OVERRIDE = 101600001
 
@@ -186,6 +191,7 @@ class Xposed: IXposedHookLoadPackage {
         const val EXTRA_VALUE = "value"
         const val EXTRA_INTENT = "intent"
         const val EXTRA_RESULT = "result"
+        const val EXTRA_RESULTS = "results"
 
         enum class CapsuleProviderMethod {
             GET_VERSION_CODE,
@@ -1494,13 +1500,14 @@ class Xposed: IXposedHookLoadPackage {
     }
 
     /**
-     *  Uses Dexkit to find the ScanCallback class, to send all scan results to uTag
+     *  Uses Dexkit to find the ScanCallback class, to send all Tag scan results to uTag
      */
     private fun LoadPackageParam.hookScanCallback(context: Context) {
         val scanCallbackClass = findClassScanCallBack(classLoader)?: run {
             context.logException("uTag: Failed to hook ScanCallback (${packageInfo.versionName}, ${BuildConfig.XPOSED_CODE})")
             return
         }
+        val batcher = ScanResultBatcher(context)
         XposedHelpers.findAndHookMethod(
             scanCallbackClass,
             "onScanResult",
@@ -1510,18 +1517,58 @@ class Xposed: IXposedHookLoadPackage {
                 override fun afterHookedMethod(param: MethodHookParam) {
                     super.afterHookedMethod(param)
                     val scanResult = param.args[1] as? ScanResult ?: return
-                    if(scanResult.device == null) return
-                    val intent = Intent(ACTION_SCAN_RECEIVED).apply {
-                        applySecurity(context)
-                        putExtra(EXTRA_RESULT, scanResult)
-                        `package` = PACKAGE_NAME_UTAG
-                    }
-                    context.sendBroadcast(intent)
+                    batcher.add(scanResult)
                 }
             }
         )
     }
 
+    /**
+     *  Collects scan results for Tags (those with [SERVICE_ID] service data), keeping only the
+     *  latest result for each address, and sends them to uTag in one broadcast every
+     *  [SCAN_BATCH_INTERVAL], or sooner once [SCAN_BATCH_SIZE] addresses have been seen. All other
+     *  devices are ignored here, rather than sending every nearby device to uTag.
+     */
+    private class ScanResultBatcher(private val context: Context) {
+
+        private val serviceUuid = ParcelUuid.fromString(SERVICE_ID)
+        private val handler = Handler(Looper.getMainLooper())
+        private val pending = LinkedHashMap<String, ScanResult>()
+        private val flushRunnable = Runnable { flush() }
+
+        fun add(scanResult: ScanResult) {
+            val address = scanResult.device?.address ?: return
+            if(scanResult.scanRecord?.getServiceData(serviceUuid) == null) return
+            val shouldFlush = synchronized(pending) {
+                if(pending.isEmpty()) {
+                    handler.postDelayed(flushRunnable, SCAN_BATCH_INTERVAL)
+                }
+                pending[address] = scanResult
+                pending.size >= SCAN_BATCH_SIZE
+            }
+            if(shouldFlush) {
+                handler.removeCallbacks(flushRunnable)
+                handler.post(flushRunnable)
+            }
+        }
+
+        private fun flush() {
+            val results = synchronized(pending) {
+                ArrayList(pending.values).also {
+                    pending.clear()
+                }
+            }
+            if(results.isEmpty()) return
+            val intent = Intent(ACTION_SCAN_RECEIVED).apply {
+                applySecurity(context)
+                putParcelableArrayListExtra(EXTRA_RESULTS, results)
+                `package` = PACKAGE_NAME_UTAG
+            }
+            context.sendBroadcast(intent)
+        }
+
+    }
+
     private fun findMethodParsePacket(classLoader: ClassLoader): Method? = run {
         val savedMethod = getSavedMethod(SharedPrefsKey.SHARED_PREF_KEY_PARSE_PACKET)
             ?.getMethodInstance(classLoader)
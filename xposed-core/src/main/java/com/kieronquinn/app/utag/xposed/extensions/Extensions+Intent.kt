@@ -5,23 +5,54 @@ import android.content.Context
 import android.content.Intent
 import android.os.Build
 import android.os.Parcelable
+import java.util.concurrent.ConcurrentHashMap
 
 const val INTENT_KEY_SECURITY_TAG = "security_tag"
 const val PENDING_INTENT_REQUEST_CODE = 999
+private const val VERIFIED_SECURITY_TAG_CACHE_SIZE = 16
+
+/**
+ *  Security tags are only created once per package, since the same [PendingIntent] is returned
+ *  each time anyway. This saves a call to system_server for every broadcast.
+ */
+private val securityTags = ConcurrentHashMap<String, PendingIntent>()
+
+/**
+ *  Security tags which have already been verified -> their creator package. [PendingIntent]
+ *  equality is based on the underlying token, so a tag which has been seen before can be checked
+ *  without asking system_server for the creator again, and a tag from another package cannot
+ *  match one from here.
+ */
+private val verifiedSecurityTags = object: LinkedHashMap<PendingIntent, String>(
+    VERIFIED_SECURITY_TAG_CACHE_SIZE, 0.75f, true
+) {
+    override fun removeEldestEntry(eldest: MutableMap.MutableEntry<PendingIntent, String>?): Boolean {
+        return size > VERIFIED_SECURITY_TAG_CACHE_SIZE
+    }
+}
 
 fun Intent.applySecurity(context: Context) {
-    val securityTag = PendingIntent.getActivity(
-        context,
-        PENDING_INTENT_REQUEST_CODE,
-        Intent(),
-        PendingIntent.FLAG_IMMUTABLE
-    )
+    val securityTag = securityTags.getOrPut(context.packageName) {
+        PendingIntent.getActivity(
+            context,
+            PENDING_INTENT_REQUEST_CODE,
+            Intent(),
+            PendingIntent.FLAG_IMMUTABLE
+        )
+    }
     putExtra(INTENT_KEY_SECURITY_TAG, securityTag)
 }
 
 fun Intent.verifySecurity(requiredPackage: String) {
     getParcelableExtraCompat(INTENT_KEY_SECURITY_TAG, PendingIntent::class.java)?.let {
-        if(it.creatorPackage == requiredPackage) return
+        val creatorPackage = synchronized(verifiedSecurityTags) {
+            verifiedSecurityTags[it]
+        } ?: it.creatorPackage?.also { creator ->
+            synchronized(verifiedSecurityTags) {
+                verifiedSecurityTags[it] = creator
+            }
+        }
+        if(creatorPackage == requiredPackage) return
     }
     throw SecurityException("Unauthorised access")
 }
@@ -33,4 +64,15 @@ fun <T: Parcelable> Intent.getParcelableExtraCompat(key: String, type: Class<T>)
     } else {
         getParcelableExtra(key)
     }
-}
\ No newline at end of file
+}
+@Suppress("DEPRECATION")
+fun <T: Parcelable> Intent.getParcelableArrayListExtraCompat(
+    key: String,
+    type: Class<T>
+): ArrayList<T>? {
+    return if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU) {
+        getParcelableArrayListExtra(key, type)
+    } else {
+        getParcelableArrayListExtra(key)
+    }
+}